@@ -0,0 +1,99 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+/**
+ * Largest number of characters of JSON text to put in one chunk sent to the host.
+ */
+const MAX_CHUNK_CHARS = 8 * 1024 * 1024;
+
+/**
+ * A slice of the JSON text of a message which was too large to be sent in one native message.  The host
+ * sends messages larger than 1 MB this way, and the extension does the same for very large messages.
+ */
+export interface Chunk {
+    readonly chunk: {
+        readonly id: number;
+        readonly seq: number;
+        readonly last: boolean;
+    };
+    readonly data: string;
+}
+
+/**
+ * Determine whether a native message is a chunk rather than a whole message.
+ * @param m native message
+ * @returns true if m is a chunk
+ */
+export function isChunk(m: unknown): m is Chunk {
+    return typeof m === "object" && m != null && "chunk" in m;
+}
+
+/**
+ * Joins chunks back into whole messages.
+ */
+export class ChunkAssembler {
+    private readonly partials = new Map<number, string[]>();
+
+    /**
+     * Add a chunk to the message it belongs to.
+     * @param c chunk
+     * @returns the whole message if this was its last chunk, otherwise undefined
+     */
+    public add(c: Chunk): unknown {
+        let partial = this.partials.get(c.chunk.id);
+        if (partial == null) {
+            partial = [];
+            this.partials.set(c.chunk.id, partial);
+        }
+        if (c.chunk.seq !== partial.length) {
+            this.partials.delete(c.chunk.id);
+            throw new Error(`Chunk ${c.chunk.seq} of message ${c.chunk.id} is out of sequence`);
+        }
+        partial.push(c.data);
+        if (c.chunk.last) {
+            this.partials.delete(c.chunk.id);
+            return JSON.parse(partial.join(""));
+        }
+        return undefined;
+    }
+}
+
+let nextChunkId = 0;
+
+/**
+ * Split a message into chunks if it's too large to be sent as one native message.
+ * @param message message to send
+ * @returns chunks to send in order, or null if the message can be sent as is
+ */
+export function toChunks(message: unknown): Chunk[] | null {
+    const json = JSON.stringify(message);
+    if (json.length <= MAX_CHUNK_CHARS) {
+        return null;
+    }
+    const id = nextChunkId++;
+    const chunks: Chunk[] = [];
+    let pos = 0;
+    while (pos < json.length) {
+        let end = Math.min(json.length, pos + MAX_CHUNK_CHARS);
+        const c = json.charCodeAt(end - 1);
+        if (end < json.length && c >= 0xd800 && c <= 0xdbff) {
+            end--;
+        }
+        chunks.push({ chunk: { id: id, seq: chunks.length, last: end === json.length }, data: json.substring(pos, end) });
+        pos = end;
+    }
+    return chunks;
+}
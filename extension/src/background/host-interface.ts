@@ -18,6 +18,7 @@ import { Message } from "../message/message";
 import { Command, COMMAND, KEEP_ALIVE } from "../message/command";
 import { ERROR, LogEntry } from "../message/log-entry";
 import browser from "webextension-polyfill";
+import { ChunkAssembler, isChunk, toChunks } from "./chunks";
 
 const NATIVE_NAME = "io.github.thomashuss.cpterm";
 const VERSION = "version";
@@ -34,11 +35,13 @@ export class HostInterface {
     private nativePort: browser.Runtime.Port | null;
     private quitTimeout: ReturnType<typeof setTimeout> | null;
     private csPorts: Set<browser.Runtime.Port>;
+    private chunks: ChunkAssembler;
 
     constructor() {
         this.nativePort = null;
         this.quitTimeout = null;
         this.csPorts = new Set<browser.Runtime.Port>();
+        this.chunks = new ChunkAssembler();
     }
 
     /**
@@ -49,6 +52,39 @@ export class HostInterface {
         this.csPorts.forEach((o) => o.postMessage(message));
     }
 
+    /**
+     * Event handler for a message from the native port.  Chunks are held until the whole message arrives.
+     * @param message native message
+     */
+    private onNativeMessage(message: unknown) {
+        if (isChunk(message)) {
+            try {
+                const whole = this.chunks.add(message);
+                if (whole !== undefined) {
+                    this.postToCS(whole);
+                }
+            } catch (e) {
+                this.postToCS(new LogEntry(ERROR, String(e)));
+            }
+        } else {
+            this.postToCS(message);
+        }
+    }
+
+    /**
+     * Post a message to the native port, splitting it into chunks if it's too large.
+     * @param nativePort open native port
+     * @param message message to post
+     */
+    private postToNative(nativePort: browser.Runtime.Port, message: unknown) {
+        const chunks = toChunks(message);
+        if (chunks == null) {
+            nativePort.postMessage(message);
+        } else {
+            chunks.forEach((c) => nativePort.postMessage(c));
+        }
+    }
+
     /**
      * Event handler for native port disconnect.
      * @param nativePort disconnected native port
@@ -99,7 +135,7 @@ export class HostInterface {
                 nativePort.onMessage.addListener(versionCheck);
             });
             nativePort.onDisconnect.addListener(this.onNativePortDisconnect.bind(this));
-            nativePort.onMessage.addListener(this.postToCS.bind(this));
+            nativePort.onMessage.addListener(this.onNativeMessage.bind(this));
             const prefs = await browser.storage.local.get(null);
             if (Object.keys(prefs).length != 0) {
                 nativePort.postMessage({ type: "setPrefs", prefs: prefs });
@@ -134,7 +170,7 @@ export class HostInterface {
     public postMessage(cs: browser.Runtime.Port, message: Message) {
         this.unsetQuitTimeout();
         if (message.type !== COMMAND || (message as Command).command !== KEEP_ALIVE) {
-            this.ensurePort(cs).then((p) => p.postMessage(message));
+            this.ensurePort(cs).then((p) => this.postToNative(p, message));
         }
         this.setQuitTimeout();
     }
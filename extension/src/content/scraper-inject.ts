@@ -18,6 +18,8 @@ import { FROM_CPTERM_SCRAPER, TO_CPTERM_SCRAPER } from "./const";
 import { COMMAND, Command, KEEP_ALIVE } from "../message/command";
 import { Message } from "../message/message";
 import { SET_CODE, SetCode } from "../message/set-code";
+import { SET_CODE_DELTA, SetCodeDelta } from "../message/set-code-delta";
+import { RequestCode } from "../message/request-code";
 import { TestCase, TestResults } from "../message/test-results";
 import { NewProblem } from "../message/new-problem";
 import { watchElement } from "../scraper/util";
@@ -71,6 +73,11 @@ function registerBackgroundListener(scraper: Scraper) {
             const message = JSON.parse(e.detail) as Message;
             if (message.type === SET_CODE) {
                 scraper.setCode((message as SetCode).code);
+            } else if (message.type === SET_CODE_DELTA) {
+                const delta = message as SetCodeDelta;
+                if (!scraper.editCode(delta.baseHash, delta.hash, delta.edits)) {
+                    sendMessage(new RequestCode());
+                }
             } else if (message.type === COMMAND) {
                 if ((message as Command).command == RUN_TEST) {
                     handleTestCase(scraper.runTestCases());
@@ -0,0 +1,26 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+import { Message } from "./message";
+
+const REQUEST_CODE = "requestCode";
+
+/**
+ * Asks the host for the whole code after a delta couldn't be applied.
+ */
+export class RequestCode implements Message {
+    readonly type = REQUEST_CODE;
+}
@@ -0,0 +1,51 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+import { Message } from "./message";
+
+export const SET_CODE_DELTA = "setCodeDelta";
+
+/**
+ * Replacement of the range [start, end) of the code with text.  Offsets count UTF-16 code units.
+ */
+export interface CodeEdit {
+    readonly start: number;
+    readonly end: number;
+    readonly text: string;
+}
+
+/**
+ * Changes to the code, relative to the code which was last synced.
+ */
+export interface SetCodeDelta extends Message {
+    readonly baseHash: number;
+    readonly hash: number;
+    readonly edits: CodeEdit[];
+}
+
+/**
+ * Compute the 32-bit FNV-1a hash of the UTF-16 code units of a string, as a signed integer.  Must agree with
+ * the host's implementation.
+ * @param s string to hash
+ * @returns hash
+ */
+export function hashCode(s: string): number {
+    let h = 0x811c9dc5 | 0;
+    for (let i = 0; i < s.length; i++) {
+        h = Math.imul(h ^ s.charCodeAt(i), 0x01000193);
+    }
+    return h;
+}
@@ -16,6 +16,7 @@
 
 import { TestCase } from "../message/test-results";
 import { Scraper } from "./scraper";
+import { CodeEdit, hashCode } from "../message/set-code-delta";
 
 /**
  * A single monaco editor.
@@ -23,6 +24,25 @@ import { Scraper } from "./scraper";
 export interface Monaco {
     getValue(): string;
     setValue(value: string): void;
+    getPositionAt(offset: number): MonacoPosition;
+    pushStackElement(): void;
+    pushEditOperations(beforeCursorState: null, editOperations: MonacoEditOperation[],
+        cursorStateComputer: () => null): unknown;
+}
+
+export interface MonacoPosition {
+    readonly lineNumber: number;
+    readonly column: number;
+}
+
+export interface MonacoEditOperation {
+    readonly range: {
+        readonly startLineNumber: number;
+        readonly startColumn: number;
+        readonly endLineNumber: number;
+        readonly endColumn: number;
+    };
+    readonly text: string;
 }
 
 declare global {
@@ -55,6 +75,29 @@ export abstract class HasMonaco implements Scraper {
         this.getMonaco()?.setValue(code);
     }
 
+    public editCode(baseHash: number, hash: number, edits: CodeEdit[]): boolean {
+        const monaco = this.getMonaco();
+        if (monaco == null || hashCode(monaco.getValue()) !== baseHash) {
+            return false;
+        }
+        const ops = edits.map((e) => {
+            const start = monaco.getPositionAt(e.start), end = monaco.getPositionAt(e.end);
+            return {
+                range: {
+                    startLineNumber: start.lineNumber,
+                    startColumn: start.column,
+                    endLineNumber: end.lineNumber,
+                    endColumn: end.column
+                },
+                text: e.text
+            };
+        });
+        monaco.pushStackElement();
+        monaco.pushEditOperations(null, ops, () => null);
+        monaco.pushStackElement();
+        return hashCode(monaco.getValue()) === hash;
+    }
+
     abstract isProblem(): boolean;
     abstract getName(): string;
     abstract getProblem(): string;
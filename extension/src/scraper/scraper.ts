@@ -15,6 +15,7 @@
  */
 
 import { TestCase } from "../message/test-results";
+import { CodeEdit } from "../message/set-code-delta";
 
 /**
  * Get and set contents of the problem.
@@ -38,6 +39,14 @@ export interface Scraper {
      * @param code new code
      */
     setCode(code: string): void;
+    /**
+     * Apply edits to the problem code, keeping the editor's undo history.
+     * @param baseHash hash of the code the edits apply to
+     * @param hash hash of the code after the edits are applied
+     * @param edits edits relative to the base code
+     * @returns false if the code didn't match either hash
+     */
+    editCode(baseHash: number, hash: number, edits: CodeEdit[]): boolean;
     /**
      * Get the problem statement.
      */
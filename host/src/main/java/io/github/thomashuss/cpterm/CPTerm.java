@@ -16,15 +16,65 @@
 
 package io.github.thomashuss.cpterm;
 
+import io.github.thomashuss.cpterm.ext.NativeMessagingShim;
 import io.github.thomashuss.cpterm.host.CPTermHost;
 import io.github.thomashuss.cpterm.installer.Installer;
 import io.github.thomashuss.cpterm.installer.InstallerGUI;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
 
 public class CPTerm
 {
+    /**
+     * Holds the state of the host daemon.
+     */
+    private static final Path DAEMON_DIR = Paths.get(System.getProperty("user.home"), ".cpterm");
+    private static final Path DAEMON_INFO = DAEMON_DIR.resolve("daemon.properties");
+    private static final Path DAEMON_LOG = DAEMON_DIR.resolve("daemon.log");
+
+    /**
+     * Read the version without loading the host.
+     *
+     * @return version of this program
+     */
+    private static String getVersion()
+    throws IOException
+    {
+        Properties p = new Properties();
+        try (InputStream is = CPTerm.class.getClassLoader().getResourceAsStream("project.properties")) {
+            if (is != null) {
+                p.load(is);
+            }
+        }
+        return p.getProperty("version", "");
+    }
+
+    /**
+     * @return command which runs the host daemon from the jar this is running from
+     */
+    private static String[] getDaemonCommand()
+    throws IOException
+    {
+        String jar;
+        try {
+            jar = Paths.get(CPTerm.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        boolean windows = System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("windows");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + (windows ? "javaw" : "java");
+        return new String[]{java, "-cp", jar, CPTerm.class.getName(), "--daemon"};
+    }
+
     public static void main(String[] args)
     throws IOException
     {
@@ -34,6 +84,12 @@ public class CPTerm
             Installer.installCLI(Arrays.asList(args).subList(1, args.length));
         } else if ("--uninstall".equals(args[0])) {
             Installer.uninstallCLI();
+        } else if ("--shim".equals(args[0])) {
+            NativeMessagingShim.run(DAEMON_INFO, getVersion(), Arrays.asList(getDaemonCommand()), DAEMON_LOG);
+        } else if ("--daemon".equals(args[0])) {
+            CPTermHost.runDaemon(DAEMON_INFO);
+        } else if ("--train".equals(args[0])) {
+            CPTermHost.train();
         } else {
             CPTermHost.run();
         }
@@ -20,40 +20,77 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Runs a thread which invokes the implemented {@link #modified} method when the file at the provided path
- * is modified.
+ * Invokes the implemented {@link #modified} method when the file at the provided path is modified.  Any number
+ * of files, in any number of directories, may be watched at once.  Each directory is registered with the watch
+ * service once, however many of its files are watched, and is unregistered when the last of them stops being
+ * watched.  One dispatcher thread takes the events for every directory and routes them to the watchers of the
+ * files they name; it's started when the first {@code Watcher} starts.
+ * <p>
+ * Editors often change a file several times for one save, so events are coalesced: {@link #modified} is invoked
+ * once the file has had no events for a quiet period, and its size and modification time are the same as at the
+ * last event, so a half-written file isn't read.
  */
 public abstract class Watcher
 {
     private static final Logger logger = LoggerFactory.getLogger(Watcher.class);
-    private static final WatchService watcher;
-    private static final ExecutorService exe = Executors.newSingleThreadExecutor();
-
-    static {
-        try {
-            watcher = FileSystems.getDefault().newWatchService();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    /**
+     * Default milliseconds without events after which the file is taken to be written.
+     */
+    public static final long DEFAULT_QUIET_PERIOD = 100;
+    /**
+     * Quiet periods to wait for the file to stop changing before {@link #modified} is invoked anyway.
+     */
+    private static final int MAX_UNSETTLED = 20;
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static volatile long quietPeriod = DEFAULT_QUIET_PERIOD;
+    /**
+     * Registered directories by their keys, for routing events.
+     */
+    private static final HashMap<WatchKey, Directory> byKey = new HashMap<>();
+    /**
+     * Registered directories by their paths, for reusing registrations.
+     */
+    private static final HashMap<Path, Directory> byPath = new HashMap<>();
+    private static WatchService watcher;
+    private static Thread dispatcher;
 
     protected final Path path;
     private final Path parent;
-    private Future<?> thread;
-    private AtomicBoolean flag;
+    private final Path name;
+    /**
+     * Directory this is registered with, or {@code null} if it isn't watching; guarded by the class.
+     */
+    private Directory directory;
+    /**
+     * Quiet period, set when this starts.
+     */
+    private long quiet;
+    // the remaining fields are only used on the dispatcher thread
+    private int pending;
+    private int unsettled;
+    private long deadline;
+    private String lastSnapshot;
 
     /**
      * Create a new Watcher for a single file.
@@ -62,8 +99,9 @@ public abstract class Watcher
      */
     public Watcher(Path path)
     {
-        this.path = path;
-        parent = path.getParent();
+        this.path = path.toAbsolutePath();
+        parent = this.path.getParent();
+        name = this.path.getFileName();
     }
 
     /**
@@ -71,92 +109,300 @@ public abstract class Watcher
      *
      * @throws IOException if there was a problem closing the underlying {@link WatchService}
      */
-    public static void close()
+    public static synchronized void close()
     throws IOException
     {
-        exe.shutdown();
-        watcher.close();
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            dispatcher = null;
+            byKey.clear();
+            byPath.clear();
+            watcher.close();
+        }
     }
 
     /**
-     * Run the file watcher on a separate thread.  Since the watcher thread is reused across instances
-     * of @{code Watcher}, watching won't begin until the old watcher stops.  Blocks until the watcher
-     * starts.
+     * Set how long a file must have no events before {@link #modified} is invoked.  Takes effect for watchers
+     * started afterward.
      *
-     * @throws IOException          if there was a problem registering the file with the {@link WatchService}
-     * @throws InterruptedException if this thread was interrupted while waiting for the watcher thread
+     * @param millis quiet period in milliseconds, or 0 to only coalesce events which arrive together
+     */
+    public static void setQuietPeriod(long millis)
+    {
+        quietPeriod = Math.max(0, millis);
+    }
+
+    /**
+     * @return number of events which didn't invoke {@link #modified} since they were coalesced with others
+     */
+    public static long getCoalescedEvents()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * Create the watch service and the dispatcher thread, if they haven't been created yet.
+     *
+     * @throws IOException if the watch service can't be created
+     */
+    private static void init()
+    throws IOException
+    {
+        if (dispatcher == null) {
+            WatchService ws = watcher = FileSystems.getDefault().newWatchService();
+            dispatcher = new Thread(() -> dispatch(ws), "file-watcher");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+    }
+
+    /**
+     * Start watching the file.  Does nothing if the file is already being watched by this instance.
+     *
+     * @throws IOException if there was a problem registering the file's directory with the {@link WatchService}
      */
     public final void start()
-    throws IOException, InterruptedException
+    throws IOException
     {
-        stop();
-        CountDownLatch latch = new CountDownLatch(1);
-        thread = exe.submit(new WatcherListener(flag = new AtomicBoolean(true),
-                parent.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY), latch));
-        latch.await();
+        synchronized (Watcher.class) {
+            if (directory != null) {
+                return;
+            }
+            init();
+            Directory d = byPath.get(parent);
+            if (d == null) {
+                WatchKey key = parent.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_CREATE);
+                d = byKey.get(key);
+                if (d == null) {
+                    // the key may be returned for a directory registered under another path
+                    d = new Directory(key);
+                    byKey.put(key, d);
+                }
+                byPath.put(parent, d);
+                d.paths.add(parent);
+            }
+            quiet = quietPeriod;
+            d.add(name, this);
+            directory = d;
+            logger.debug("Watching {}", path);
+        }
     }
 
     /**
-     * Stop watching the current file and try to stop the watcher thread.
+     * Stop watching the file.  The file's directory is unregistered if no other file in it is watched.
      */
     public final void stop()
     {
-        if (thread != null && flag != null && flag.getAndSet(false)) {
-            synchronized (this) {
-                thread.cancel(true);
+        synchronized (Watcher.class) {
+            Directory d = directory;
+            if (d == null) {
+                return;
             }
+            directory = null;
+            if (d.remove(name, this)) {
+                d.key.cancel();
+                d.invalidate();
+            }
+            logger.debug("Stopped watching {}", path);
         }
     }
 
     /**
-     * Invoked on the file watcher thread when the file is modified.
+     * Invoked on the dispatcher thread when the file is modified.  Other files' events wait until this returns,
+     * so it shouldn't block for long.
      */
     protected abstract void modified();
 
-    private class WatcherListener
-            implements Runnable
+    /**
+     * @return size and modification time of the file, or {@code null} if it can't be read
+     */
+    private String snapshot()
     {
-        private final AtomicBoolean flag;
-        private final WatchKey targetKey;
-        private CountDownLatch latch;
+        try {
+            BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class);
+            return a.size() + ":" + a.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
-        private WatcherListener(AtomicBoolean flag, WatchKey targetKey, CountDownLatch latch)
-        {
-            this.flag = flag;
-            this.targetKey = targetKey;
-            this.latch = latch;
+    private boolean isWatching()
+    {
+        synchronized (Watcher.class) {
+            return directory != null;
         }
+    }
 
-        @Override
-        public void run()
-        {
-            logger.debug("Starting watcher for {}", path);
-            latch.countDown();
-            latch = null;
-            while (flag.get()) {
-                WatchKey key;
-                try {
-                    key = watcher.take();
-                } catch (InterruptedException e) {
-                    break;
+    /**
+     * Take events from the watch service and route them to the watchers of the files they name, and invoke the
+     * watchers whose files have settled.
+     *
+     * @param ws watch service
+     */
+    private static void dispatch(WatchService ws)
+    {
+        logger.debug("Starting file watcher");
+        // watchers with events since they were last invoked
+        LinkedHashSet<Watcher> pending = new LinkedHashSet<>();
+        ArrayList<Watcher> due = new ArrayList<>();
+        while (true) {
+            WatchKey key;
+            try {
+                if (pending.isEmpty()) {
+                    key = ws.take();
+                } else {
+                    long next = Long.MAX_VALUE;
+                    for (Watcher w : pending) {
+                        next = Math.min(next, w.deadline);
+                    }
+                    long wait = next - System.currentTimeMillis();
+                    key = wait > 0 ? ws.poll(wait, TimeUnit.MILLISECONDS) : ws.poll();
                 }
-                synchronized (Watcher.this) {
-                    if (targetKey.equals(key)) {
-                        for (WatchEvent<?> e : key.pollEvents()) {
-                            if (parent.resolve((Path) e.context()).equals(path)) {
-                                logger.debug("Modified");
-                                modified();
-                            }
-                        }
-                        if (!key.reset()) {
-                            break;
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            if (key != null) {
+                Directory d;
+                synchronized (Watcher.class) {
+                    d = byKey.get(key);
+                }
+                List<WatchEvent<?>> events = key.pollEvents();
+                if (d != null) {
+                    route(d, events, pending);
+                }
+                if (!key.reset()) {
+                    synchronized (Watcher.class) {
+                        if (d != null) {
+                            d.invalidate();
                         }
                     }
                 }
             }
-            logger.debug("Ending watcher");
-            flag.set(false);
-            targetKey.cancel();
+            long now = System.currentTimeMillis();
+            for (Iterator<Watcher> it = pending.iterator(); it.hasNext(); ) {
+                Watcher w = it.next();
+                if (!w.isWatching()) {
+                    w.pending = 0;
+                    it.remove();
+                } else if (w.deadline <= now) {
+                    String snapshot = w.snapshot();
+                    if ((snapshot == null || !snapshot.equals(w.lastSnapshot)) && ++w.unsettled < MAX_UNSETTLED) {
+                        w.lastSnapshot = snapshot;
+                        w.deadline = now + w.quiet;
+                    } else {
+                        due.add(w);
+                        it.remove();
+                    }
+                }
+            }
+            for (Watcher w : due) {
+                logger.debug("Modified {} ({} events coalesced)", w.path, w.pending);
+                coalesced.addAndGet(w.pending - 1);
+                w.pending = 0;
+                try {
+                    w.modified();
+                } catch (RuntimeException e) {
+                    logger.error("File watcher callback failed", e);
+                }
+            }
+            due.clear();
+        }
+        logger.debug("Ending file watcher");
+    }
+
+    /**
+     * Mark the watchers of the files named by a directory's events as pending, and restart their quiet periods.
+     *
+     * @param d       directory
+     * @param events  events for the directory
+     * @param pending watchers with events since they were last invoked
+     */
+    private static void route(Directory d, List<WatchEvent<?>> events, Set<Watcher> pending)
+    {
+        LinkedHashSet<Watcher> touched = new LinkedHashSet<>();
+        for (WatchEvent<?> e : events) {
+            if (e.kind() != StandardWatchEventKinds.OVERFLOW) {
+                Set<Watcher> watchers = d.files.get((Path) e.context());
+                if (watchers != null) {
+                    for (Watcher w : watchers) {
+                        w.pending += e.count();
+                        touched.add(w);
+                    }
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Watcher w : touched) {
+            pending.add(w);
+            w.unsettled = 0;
+            w.deadline = now + w.quiet;
+            w.lastSnapshot = w.snapshot();
+        }
+    }
+
+    /**
+     * A registered directory and the watchers of its files.
+     */
+    private static class Directory
+    {
+        private final WatchKey key;
+        /**
+         * Paths under which the directory was registered.
+         */
+        private final Set<Path> paths = new LinkedHashSet<>();
+        /**
+         * File name -> watchers of the file.  Written under the class lock and read by the dispatcher.
+         */
+        private final ConcurrentHashMap<Path, Set<Watcher>> files = new ConcurrentHashMap<>();
+        /**
+         * Number of watchers registered with this directory.
+         */
+        private int refs;
+
+        private Directory(WatchKey key)
+        {
+            this.key = key;
+        }
+
+        private void add(Path name, Watcher w)
+        {
+            files.computeIfAbsent(name, k -> new CopyOnWriteArraySet<>()).add(w);
+            refs++;
+        }
+
+        /**
+         * Forget the directory once its key is no longer valid, as when the directory was deleted, so that its
+         * watchers can be started again.
+         */
+        private void invalidate()
+        {
+            byKey.remove(key);
+            for (Path p : paths) {
+                byPath.remove(p);
+            }
+            for (Set<Watcher> s : files.values()) {
+                for (Watcher w : s) {
+                    w.directory = null;
+                }
+            }
+            files.clear();
+            refs = 0;
+        }
+
+        /**
+         * @return {@code true} if no watchers are left
+         */
+        private boolean remove(Path name, Watcher w)
+        {
+            Set<Watcher> s = files.get(name);
+            if (s != null && s.remove(w)) {
+                if (s.isEmpty()) {
+                    files.remove(name);
+                }
+                refs--;
+            }
+            return refs == 0;
         }
     }
 }
@@ -20,8 +20,13 @@ import org.apache.batik.transcoder.TranscoderException;
 import org.apache.batik.transcoder.TranscoderInput;
 import org.apache.batik.transcoder.TranscoderOutput;
 import org.apache.batik.util.SVGConstants;
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.CDataNode;
+import org.jsoup.nodes.DataNode;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
 import org.jsoup.safety.Cleaner;
 import org.jsoup.safety.Safelist;
 import org.jsoup.select.Elements;
@@ -32,6 +37,15 @@ import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,51 +55,183 @@ import java.util.regex.Pattern;
 class ConversionUtils
 {
     private static final Logger logger = LoggerFactory.getLogger(ConversionUtils.class);
-    private static final Cleaner cleaner = new Cleaner(Safelist.relaxed()
-            .addTags("svg")
-            .addAttributes(":all", "style")
-            .addAttributes("svg", "width", "height", "viewBox", "xmlns")
-            .addEnforcedAttribute("svg", "xmlns", SVGConstants.SVG_NAMESPACE_URI)
-            .addProtocols("img", "src", "data"));
+    private static final Rules safelist = new Rules();
     private static final Base64.Encoder b64 = Base64.getEncoder();
-    private static final PNGTranscoderDimensions pngTranscoder = new PNGTranscoderDimensions();
     private static final int PNG_SCALAR = 4;
     private static final Pattern FLOAT_P = Pattern.compile("[0-9.]+");
+    private static final Pattern INTER_TAG_SPACE = Pattern.compile(">\\s+<");
+    /**
+     * Limit on the characters held by the cache of rendered drawings, about 32 MiB.
+     */
+    private static final long CACHE_CHARS = 16L * 1024 * 1024;
 
     /**
-     * Clean the {@link Document} using a Jsoup {@link Cleaner}, but leave SVG elements unchanged.
+     * Clean the {@link Document} in place, with the same result as a Jsoup {@link Cleaner} using
+     * {@link #safelist}, but leave SVG elements unchanged.  Unsafe elements are unwrapped, keeping their
+     * contents; unsafe attributes, comments, and scripts are removed.  An SVG element is kept, with its
+     * subtree untouched, only if it has a width, a height, and child elements to draw.  The document is
+     * reduced to an empty head and the cleaned body, like the shell a {@link Cleaner} copies into.
      *
      * @param d document to clean
-     * @return cleaned document
+     * @return {@code d}, cleaned
      */
     static Document clean(Document d)
     {
-        Elements svgs = d.getElementsByTag("svg");
-        if (!svgs.isEmpty()) {
-            ArrayList<Elements> svgChildren = new ArrayList<>(svgs.size());
-            for (Element svg : svgs) {
-                Elements c = svg.children();
-                if (svg.hasAttr("width") && svg.hasAttr("height") && !c.isEmpty()) {
-                    svgChildren.add(c);
-                } else {
-                    svg.remove();
-                }
+        Element body = d.body();
+        cleanChildren(body);
+
+        Element html = body.parent();
+        for (int i = d.childNodeSize() - 1; i >= 0; i--) {
+            if (d.childNode(i) != html) {
+                d.childNode(i).remove();
             }
-            d = cleaner.clean(d);
-            svgs = d.getElementsByTag("svg");
-            int i = 0;
-            for (Element svg : svgs) {
-                svg.appendChildren(svgChildren.get(i++));
+        }
+        Element head = d.head();
+        for (int i = html.childNodeSize() - 1; i >= 0; i--) {
+            Node n = html.childNode(i);
+            if (n != head && n != body) {
+                n.remove();
             }
-        } else {
-            d = cleaner.clean(d);
         }
+        head.empty();
+        html.clearAttributes();
+        head.clearAttributes();
+        body.clearAttributes();
         return d;
     }
 
+    /**
+     * Remove the attributes of a safe element which {@link #safelist} doesn't allow, and add those it
+     * enforces.  URLs which are checked for protocol are made absolute.
+     *
+     * @param el element to clean
+     */
+    private static void cleanAttributes(Element el)
+    {
+        String tag = el.tagName();
+        if (el.attributesSize() != 0) {
+            for (Iterator<Attribute> it = el.attributes().iterator(); it.hasNext(); ) {
+                if (!safelist.allows(tag, el, it.next())) {
+                    it.remove();
+                }
+            }
+        }
+        if (tag.equals("svg")) {
+            el.attr("xmlns", SVGConstants.SVG_NAMESPACE_URI);
+        }
+    }
+
+    /**
+     * Clean the children of an element.  If any are removed or unwrapped, the new list of children is built
+     * in one pass and swapped in at once, since removing or unwrapping children one at a time renumbers
+     * their siblings every time.
+     *
+     * @param el element whose children to clean
+     */
+    private static void cleanChildren(Element el)
+    {
+        if (el.childNodeSize() != 0) {
+            ArrayList<Node> kept = new ArrayList<>(el.childNodeSize());
+            if (collectSafeNodes(el, safelist.allows(el.normalName()), kept)) {
+                detachChildren(el);
+                el.appendChildren(kept);
+            }
+        }
+    }
+
+    /**
+     * Detach every child of an element, so that it can be added elsewhere.  Children are removed from the last,
+     * so no sibling is renumbered; {@link Element#empty()} can't be used, since it may leave the children
+     * pointing to their old parent.
+     *
+     * @param el element whose children to detach
+     */
+    private static void detachChildren(Element el)
+    {
+        for (int i = el.childNodeSize() - 1; i >= 0; i--) {
+            el.childNode(i).remove();
+        }
+    }
+
+    /**
+     * Clean the children of an element, adding those which are kept to a list.  Attributes are cleaned before
+     * the children are detached, since making URLs absolute needs the document's base URI.
+     *
+     * @param el   element whose children to clean
+     * @param safe is {@code el} itself allowed?  Data, such as styles and scripts, is only kept in elements
+     *             which are allowed.
+     * @param kept list to add cleaned children to
+     * @return {@code true} if the list differs from the children of {@code el}
+     */
+    private static boolean collectSafeNodes(Element el, boolean safe, List<Node> kept)
+    {
+        boolean changed = false;
+        for (Node node : el.childNodes()) {
+            if (node instanceof Element) {
+                Element child = (Element) node;
+                String tag = child.normalName();
+                if (tag.equals("svg")) {
+                    if (child.hasAttr("width") && child.hasAttr("height") && child.childrenSize() != 0) {
+                        cleanAttributes(child);
+                        kept.add(child);
+                    } else {
+                        changed = true;
+                    }
+                } else if (safelist.allows(tag)) {
+                    cleanAttributes(child);
+                    cleanChildren(child);
+                    kept.add(child);
+                } else {
+                    collectSafeNodes(child, false, kept);
+                    detachChildren(child);
+                    changed = true;
+                }
+            } else if (node instanceof CDataNode) {
+                kept.add(new TextNode(((CDataNode) node).getWholeText()));
+                changed = true;
+            } else if (node instanceof TextNode || (safe && node instanceof DataNode)) {
+                kept.add(node);
+            } else {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Rules for {@link #clean(Document)}: Jsoup's relaxed rules, plus styles, SVG elements, and images with data
+     * URIs.  SVG elements are always given the SVG namespace; since that's the only enforced attribute, it's
+     * added by {@link #cleanAttributes(Element)} rather than looked up here.
+     */
+    private static class Rules
+            extends Safelist
+    {
+        private Rules()
+        {
+            super(Safelist.relaxed());
+            addTags("svg");
+            addAttributes(":all", "style");
+            addAttributes("svg", "width", "height", "viewBox", "xmlns");
+            addEnforcedAttribute("svg", "xmlns", SVGConstants.SVG_NAMESPACE_URI);
+            addProtocols("img", "src", "data");
+        }
+
+        private boolean allows(String tag)
+        {
+            return isSafeTag(tag);
+        }
+
+        private boolean allows(String tag, Element el, Attribute attr)
+        {
+            return isSafeAttribute(tag, el, attr);
+        }
+    }
+
     /**
      * Render all SVG drawings in {@code root} to PNG, replacing the SVG elements with IMG elements pointing to
-     * a base64-encoded PNG.
+     * a base64-encoded PNG.  Drawings are rendered in parallel, and drawings which were rendered before, in this
+     * document or an earlier one, are taken from {@link Png#cache}.  A drawing which appears more than once in
+     * this document is rendered once and shared by every copy.
      *
      * @param root  parent of the SVG elements
      * @param scale should PNGs be scaled to reduce risk of blur, and should width and height attributes
@@ -96,9 +242,9 @@ class ConversionUtils
         Elements svgs = root.getElementsByTag("svg");
         if (!svgs.isEmpty()) {
             Matcher m = scale ? FLOAT_P.matcher("") : null;
-            ByteBufferOutputStream os = new ByteBufferOutputStream();
-            TranscoderInput transcodeIn = new TranscoderInput();
-            TranscoderOutput transcodeOut = new TranscoderOutput(os);
+            ArrayList<Drawing> drawings = new ArrayList<>(svgs.size());
+            // first copy of each drawing which isn't cached, by markup
+            LinkedHashMap<String, Drawing> pending = new LinkedHashMap<>();
             for (Element el : svgs) {
                 if (el.hasAttr("width") && el.hasAttr("height")) {
                     Element parent = el.parent();
@@ -127,28 +273,192 @@ class ConversionUtils
                         }
                     }
 
-                    transcodeIn.setReader(new StringReader(el.outerHtml()));
-                    try {
-                        pngTranscoder.transcode(transcodeIn, transcodeOut);
-                    } catch (TranscoderException e) {
-                        logger.error("Could not render SVG to PNG", e);
-                        continue;
+                    Drawing d = new Drawing(el, scaled);
+                    if ((d.png = Png.cache.get(d.svg)) == null) {
+                        pending.putIfAbsent(d.svg, d);
                     }
+                    drawings.add(d);
+                } else {
+                    el.remove();
+                }
+            }
 
+            Png.render(new ArrayList<>(pending.values()));
+
+            for (Drawing d : drawings) {
+                if (d.png == null) {
+                    Drawing first = pending.get(d.svg);
+                    if (first != null) {
+                        d.png = first.png;
+                    }
+                }
+                if (d.png != null) {
                     Element replacement = new Element("img")
                             .attr("alt", "Converted image")
-                            .attr("src", "data:image/png;base64,"
-                                    + new String(b64.encode(os.toByteBuffer()).array(), StandardCharsets.ISO_8859_1));
-                    os.reset();
-                    if (scaled) {
-                        replacement.attr("width", (pngTranscoder.getWidth() / PNG_SCALAR) + "px")
-                                .attr("height", (pngTranscoder.getHeight() / PNG_SCALAR) + "px");
+                            .attr("src", d.png.src);
+                    if (d.scaled) {
+                        replacement.attr("width", (d.png.width / PNG_SCALAR) + "px")
+                                .attr("height", (d.png.height / PNG_SCALAR) + "px");
                     }
-                    el.replaceWith(replacement);
-                } else {
-                    el.remove();
+                    d.element.replaceWith(replacement);
+                }
+            }
+        }
+    }
+
+    /**
+     * An SVG element to be rendered.
+     */
+    private static class Drawing
+    {
+        private final Element element;
+        /**
+         * Markup of the element, without the whitespace between tags, which depends on where the element is
+         * in the document.  Identifies the drawing in the cache; since the markup includes the dimensions, it
+         * includes any scaling as well.
+         */
+        private final String svg;
+        private final boolean scaled;
+        private PngImage png;
+
+        private Drawing(Element element, boolean scaled)
+        {
+            this.element = element;
+            this.scaled = scaled;
+            svg = INTER_TAG_SPACE.matcher(element.outerHtml()).replaceAll("><").trim();
+        }
+    }
+
+    /**
+     * A rendered drawing.
+     */
+    private static class PngImage
+    {
+        /**
+         * Data URI of the PNG.
+         */
+        private final String src;
+        private final float width;
+        private final float height;
+
+        private PngImage(String src, float width, float height)
+        {
+            this.src = src;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Renders drawings on a pool of threads, each with its own transcoder, since transcoders can't be shared
+     * between threads.  Batik's rasterizer is only loaded once there's an SVG to render.
+     */
+    private static class Png
+    {
+        private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "svg-renderer");
+            t.setDaemon(true);
+            return t;
+        });
+        private static final ThreadLocal<PNGTranscoderDimensions> transcoder
+                = ThreadLocal.withInitial(PNGTranscoderDimensions::new);
+        private static final ThreadLocal<ByteBufferOutputStream> buffer
+                = ThreadLocal.withInitial(ByteBufferOutputStream::new);
+        private static final PngCache cache = new PngCache(CACHE_CHARS);
+
+        /**
+         * Render the drawings, setting their {@link Drawing#png} unless they can't be rendered.  The calling
+         * thread renders too, so a single drawing never waits on the pool.
+         *
+         * @param drawings drawings to render
+         */
+        private static void render(List<Drawing> drawings)
+        {
+            int n = drawings.size();
+            if (n == 0) {
+                return;
+            }
+            AtomicInteger next = new AtomicInteger();
+            Runnable worker = () -> {
+                int i;
+                while ((i = next.getAndIncrement()) < n) {
+                    Drawing d = drawings.get(i);
+                    d.png = render(d.svg);
+                }
+            };
+            int helpers = Math.min(THREADS, n - 1);
+            ArrayList<Future<?>> futures = new ArrayList<>(helpers);
+            for (int i = 0; i < helpers; i++) {
+                futures.add(pool.submit(worker));
+            }
+            worker.run();
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    logger.error("Could not render SVG to PNG", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
         }
+
+        /**
+         * @param svg SVG markup
+         * @return rendered drawing, or {@code null} if it can't be rendered
+         */
+        private static PngImage render(String svg)
+        {
+            PNGTranscoderDimensions t = transcoder.get();
+            ByteBufferOutputStream os = buffer.get();
+            os.reset();
+            try {
+                t.transcode(new TranscoderInput(new StringReader(svg)), new TranscoderOutput(os));
+            } catch (TranscoderException e) {
+                logger.error("Could not render SVG to PNG", e);
+                return null;
+            }
+            PngImage png = new PngImage("data:image/png;base64,"
+                    + new String(b64.encode(os.toByteBuffer()).array(), StandardCharsets.ISO_8859_1),
+                    t.getWidth(), t.getHeight());
+            cache.put(svg, png);
+            return png;
+        }
+    }
+
+    /**
+     * Least recently used drawings, bounded by the total length of their markup and data URIs.
+     */
+    private static class PngCache
+    {
+        private final LinkedHashMap<String, PngImage> map = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxChars;
+        private long chars;
+
+        private PngCache(long maxChars)
+        {
+            this.maxChars = maxChars;
+        }
+
+        private synchronized PngImage get(String svg)
+        {
+            return map.get(svg);
+        }
+
+        private synchronized void put(String svg, PngImage png)
+        {
+            PngImage old = map.put(svg, png);
+            if (old == null) {
+                chars += svg.length() + png.src.length();
+            }
+            for (Iterator<Map.Entry<String, PngImage>> it = map.entrySet().iterator();
+                 chars > maxChars && it.hasNext(); ) {
+                Map.Entry<String, PngImage> e = it.next();
+                chars -= e.getKey().length() + e.getValue().src.length();
+                it.remove();
+            }
+        }
     }
 }
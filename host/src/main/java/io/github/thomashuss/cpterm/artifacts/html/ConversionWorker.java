@@ -0,0 +1,34 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import java.nio.file.Path;
+
+/**
+ * A worker which converts documents for an {@link ExternalConverter}.
+ */
+interface ConversionWorker
+        extends WorkerPool.Worker
+{
+    /**
+     * @param html   prepared HTML to convert
+     * @param output file to write the converted document to
+     * @throws ConversionException if the conversion failed
+     */
+    void convert(PreparedHtml html, Path output)
+    throws ConversionException;
+}
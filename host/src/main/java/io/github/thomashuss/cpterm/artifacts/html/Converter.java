@@ -27,6 +27,7 @@ public interface Converter
     PandocConverter PANDOC = new PandocConverter();
     LibreofficeConverter LIBREOFFICE = new LibreofficeConverter();
     RawHtmlConverter RAW_HTML = new RawHtmlConverter();
+    TextConverter TEXT = new TextConverter();
 
     /**
      * Convert the document given by {@code outerHtml} to a file at {@code outputFile}.  The resulting file
@@ -38,6 +39,32 @@ public interface Converter
      * @param outputFile file to write converted document to
      * @throws ConversionException on any blocking error; all relevant information is logged
      */
-    void convert(String outerHtml, String baseUri, Path outputFile)
+    default void convert(String outerHtml, String baseUri, Path outputFile)
+    throws ConversionException
+    {
+        convert(new ProblemDocument(outerHtml, baseUri), outputFile);
+    }
+
+    /**
+     * Convert a problem statement to a file at {@code outputFile}, as in
+     * {@link #convert(String, String, Path)}.  The problem may be converted by several converters at the same
+     * time, which share its parsed and cleaned document.
+     *
+     * @param problem    problem statement to convert
+     * @param outputFile file to write converted document to
+     * @throws ConversionException on any blocking error; all relevant information is logged
+     */
+    void convert(ProblemDocument problem, Path outputFile)
     throws ConversionException;
+
+    /**
+     * Describe everything about this converter which affects what it outputs, so that documents it converted
+     * can be cached.  Converters which are configurable must include their configuration.
+     *
+     * @return string which differs between converters, and between configurations of one converter
+     */
+    default String getCacheKey()
+    {
+        return getClass().getName();
+    }
 }
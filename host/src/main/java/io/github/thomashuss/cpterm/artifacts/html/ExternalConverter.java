@@ -16,57 +16,158 @@
 
 package io.github.thomashuss.cpterm.artifacts.html;
 
+import org.jsoup.SerializationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * A {@link Converter} which delegates to an external process.
+ * A {@link Converter} which delegates to an external process.  Conversions are run by a {@link WorkerPool}, so
+ * several may run at once and each has a time limit.  By default, a worker starts a new process for each
+ * conversion; converters whose tool can stay running between conversions provide reusable workers instead.
+ * Changing the executable or the arguments replaces the workers.
  */
 public abstract class ExternalConverter
         implements Converter
 {
     protected static final Logger logger = LoggerFactory.getLogger(ExternalConverter.class);
     protected final ArrayList<String> args = new ArrayList<>(0);
+    protected final WorkerPool<ConversionWorker> pool
+            = new WorkerPool<>(getClass().getSimpleName(), this::newWorker);
     protected String exePath;
 
-    protected static void logError(int code, BufferedReader out, BufferedReader err)
+    protected static void logError(int code, String stdout, String stderr)
     throws ConversionException
     {
         if (code != 0) {
             logger.error("Exit code was {}", code);
-            String stdout = out.lines().collect(Collectors.joining("\n"));
-            String stderr = err.lines().collect(Collectors.joining("\n"));
             logger.error("stdout:\n{}", stdout);
             logger.error("stderr:\n{}", stderr);
             throw new ConversionException(stdout + '\n' + stderr);
         }
     }
 
-    public final void convert(String outerHtml, String baseUri, Path outputFile)
+    @Override
+    public final void convert(ProblemDocument problem, Path outputFile)
     throws ConversionException
     {
-        doConvert(outerHtml, baseUri, outputFile);
+        doConvert(problem, outputFile);
         if (!Files.exists(outputFile)) {
             logger.error("File {} does not exist", outputFile);
             throw new ConversionException("External process did not create file");
         }
     }
 
-    protected abstract void doConvert(String outerHtml, String baseUri, Path outputFile)
+    protected abstract void doConvert(ProblemDocument problem, Path outputFile)
     throws ConversionException;
 
+    /**
+     * Convert prepared HTML on one of the pool's workers.
+     *
+     * @param html   HTML to convert
+     * @param output file to write the converted document to
+     * @throws ConversionException if the conversion failed or timed out
+     */
+    protected final void writeToProcess(PreparedHtml html, Path output)
+    throws ConversionException
+    {
+        try {
+            pool.run(w -> w.convert(html, output));
+        } catch (IOException e) {
+            logger.error("Conversion failed", e);
+            // a timed out conversion's own failure has whatever the process wrote before it was killed
+            Throwable cause = e.getCause();
+            throw new ConversionException(cause instanceof ConversionException
+                    ? e.getMessage() + '\n' + cause.getMessage() : e.getMessage());
+        } finally {
+            logger.info("{}", pool.getStats());
+        }
+    }
+
+    /**
+     * Create a worker for the pool.  By default, the worker starts a new process for each conversion.
+     *
+     * @param slot index of the worker among the pool's workers
+     * @return new worker
+     * @throws IOException if the worker could not be started
+     */
+    protected ConversionWorker newWorker(int slot)
+    throws IOException
+    {
+        return new ProcessWorker();
+    }
+
+    /**
+     * Run a new process to convert a document.
+     *
+     * @param html   HTML to convert
+     * @param output file to write the converted document to
+     * @param worker worker running the conversion, which must be given the process
+     * @throws ConversionException if the conversion failed
+     */
+    protected abstract void runProcess(PreparedHtml html, Path output, ProcessWorker worker)
+    throws ConversionException;
+
+    /**
+     * Configure the pool.
+     *
+     * @see WorkerPool#configure(int, int, int, long, long)
+     */
+    public void setPool(int size, int queueDepth, int maxJobs, long timeout, long idleTimeout)
+    {
+        pool.configure(size, queueDepth, maxJobs, timeout, idleTimeout);
+    }
+
+    /**
+     * @return current state of the pool
+     */
+    public WorkerPool.Stats getStats()
+    {
+        return pool.getStats();
+    }
+
+    /**
+     * Start a worker ahead of the first conversion, if workers are reusable.
+     */
+    public void startWorkers()
+    {
+        try {
+            pool.warm();
+        } catch (IOException e) {
+            logger.warn("Could not start worker", e);
+        }
+    }
+
+    /**
+     * Stop the idle workers, and the busy ones once they finish.
+     */
+    public void stopWorkers()
+    {
+        pool.reset();
+    }
+
+    @Override
+    public synchronized String getCacheKey()
+    {
+        return getClass().getName() + '\0' + exePath + '\0' + String.join("\0", args);
+    }
+
     /**
      * Set the path to the executable.
      *
      * @param exePath path to delegate executable
      */
-    public void setExePath(Path exePath)
+    public synchronized void setExePath(Path exePath)
     {
         if (exePath == null) {
             throw new IllegalArgumentException("Path is null");
@@ -75,7 +176,11 @@ public abstract class ExternalConverter
         if (!Files.isExecutable(exePath)) {
             throw new IllegalArgumentException("Path does not point to an executable");
         }
-        this.exePath = exePath.toString();
+        String path = exePath.toString();
+        if (!path.equals(this.exePath)) {
+            this.exePath = path;
+            pool.reset();
+        }
     }
 
     /**
@@ -111,9 +216,11 @@ public abstract class ExternalConverter
         if (argStr.isEmpty()) {
             if (!args.isEmpty()) {
                 args.clear();
+                pool.reset();
             }
             return;
         }
+        ArrayList<String> old = new ArrayList<>(args);
         boolean sq = false;
         boolean dq = false;
         int strlen = argStr.length();
@@ -161,5 +268,132 @@ public abstract class ExternalConverter
                 args.remove(k--);
             }
         }
+        if (!args.equals(old)) {
+            pool.reset();
+        }
+    }
+
+    /**
+     * Forcibly stop a process and every process it started.  Descendants can only be found on Java 9 and later,
+     * so on Java 8 only the process itself is stopped.
+     *
+     * @param process process to stop
+     */
+    private static void destroyTree(Process process)
+    {
+        if (Descendants.method != null) {
+            try {
+                Object handle = Descendants.toHandle.invoke(process);
+                ((Stream<?>) Descendants.method.invoke(handle)).forEach(h -> {
+                    try {
+                        Descendants.destroy.invoke(h);
+                    } catch (ReflectiveOperationException ignored) {
+                    }
+                });
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Could not stop descendants of process", e);
+            }
+        }
+        process.destroyForcibly();
+    }
+
+    /**
+     * A worker which starts a new process for each conversion, and is closed after one.  Closing the worker stops
+     * the process and everything it started.
+     */
+    protected class ProcessWorker
+            implements ConversionWorker
+    {
+        /**
+         * Milliseconds to wait for the output streams to end after the process exits.
+         */
+        private static final long DRAIN_TIMEOUT = 1000;
+        private volatile Process process;
+        private volatile boolean closed;
+
+        @Override
+        public void convert(PreparedHtml html, Path output)
+        throws ConversionException
+        {
+            runProcess(html, output, this);
+        }
+
+        /**
+         * Run a process to completion.  Its output streams are read as it runs, and the HTML, if given, is streamed
+         * to its standard input.
+         *
+         * @param pb    process to start
+         * @param stdin HTML to write to the process, or {@code null} to write nothing
+         * @throws ConversionException if the process could not be run or exited with an error
+         */
+        protected void run(ProcessBuilder pb, PreparedHtml stdin)
+        throws ConversionException
+        {
+            try {
+                Process p = process = pb.start();
+                if (closed) {
+                    destroyTree(p);
+                }
+                StreamDrainer out = StreamDrainer.start(p.getInputStream(), "converter-stdout");
+                StreamDrainer err = StreamDrainer.start(p.getErrorStream(), "converter-stderr");
+                try (Writer w = new BufferedWriter(new OutputStreamWriter(p.getOutputStream(),
+                        StandardCharsets.UTF_8))) {
+                    if (stdin != null) {
+                        stdin.writeTo(w);
+                    }
+                } catch (IOException | SerializationException e) {
+                    // the process stopped reading; its exit code and output tell why
+                    logger.debug("Process did not take all input", e);
+                }
+                int code = p.waitFor();
+                logError(code, out.await(DRAIN_TIMEOUT), err.await(DRAIN_TIMEOUT));
+            } catch (IOException | InterruptedException e) {
+                logger.error("Communication with process failed", e);
+                throw new ConversionException(e);
+            }
+        }
+
+        @Override
+        public boolean isReusable()
+        {
+            return false;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+            Process p = process;
+            if (p != null) {
+                destroyTree(p);
+            }
+        }
+    }
+
+    /**
+     * {@code ProcessHandle} methods, looked up reflectively since the program is built for Java 8.
+     */
+    private static final class Descendants
+    {
+        private static final Method toHandle;
+        private static final Method method;
+        private static final Method destroy;
+
+        static {
+            Method t = null;
+            Method m = null;
+            Method d = null;
+            try {
+                Class<?> handle = Class.forName("java.lang.ProcessHandle");
+                t = Process.class.getMethod("toHandle");
+                m = handle.getMethod("descendants");
+                d = handle.getMethod("destroyForcibly");
+            } catch (ReflectiveOperationException ignored) {
+                m = null;
+            }
+            toHandle = t;
+            method = m;
+            destroy = d;
+        }
     }
 }
@@ -0,0 +1,457 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps remote images referenced by problem statements on disk, so that each is fetched once instead of by every
+ * converter on every render.  Images are stored by a hash of their contents, so an image served from several
+ * URLs is stored once, and each URL records which image it was last fetched as.  A URL is fetched again once its
+ * record is older than the time to live.
+ * <p>
+ * The cache is bounded in size.  Hits refresh an image's modification time, and the least recently used images
+ * are evicted when new ones put the cache over its limit.  Images referenced by one document are fetched at the
+ * same time, and an image being fetched for one document isn't fetched again for another.
+ * <p>
+ * Images handed out are pinned until they're {@link #release released}, so that a document being converted
+ * never points to an evicted image.  Eviction waits until no document's images are being fetched, since those
+ * aren't pinned yet.
+ */
+public class ImageCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(ImageCache.class);
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int FETCH_THREADS = 4;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+    /**
+     * Largest image which is fetched; larger ones are left for the converters.
+     */
+    private static final long MAX_IMAGE_BYTES = 16 * 1024 * 1024;
+    /**
+     * Content type -> file extension, so converters which go by the extension know the image type.
+     */
+    private static final Map<String, String> EXTENSIONS = new HashMap<>();
+
+    static {
+        EXTENSIONS.put("image/png", "png");
+        EXTENSIONS.put("image/jpeg", "jpg");
+        EXTENSIONS.put("image/gif", "gif");
+        EXTENSIONS.put("image/svg+xml", "svg");
+        EXTENSIONS.put("image/webp", "webp");
+        EXTENSIONS.put("image/bmp", "bmp");
+    }
+
+    private final Path images;
+    private final Path urls;
+    private final ExecutorService fetcher;
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * Image -> number of documents it's pinned for.  Guarded by this.
+     */
+    private final HashMap<Path, Integer> pinned = new HashMap<>();
+    /**
+     * Number of {@link #getAll} calls running.  Guarded by this.
+     */
+    private int fetching;
+    /**
+     * Whether images were added since the cache was last evicted.  Guarded by this.
+     */
+    private boolean evictPending;
+    private volatile long maxBytes;
+    private volatile long ttlMillis;
+
+    /**
+     * Create a cache in the given directory, which is created if it doesn't exist.
+     *
+     * @param dir       cache directory
+     * @param maxBytes  size limit of the cache
+     * @param ttlMillis how long an image fetched from a URL is used before the URL is fetched again
+     */
+    public ImageCache(Path dir, long maxBytes, long ttlMillis)
+    {
+        this.images = dir.resolve("images");
+        this.urls = dir.resolve("urls");
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        AtomicInteger n = new AtomicInteger();
+        fetcher = Executors.newFixedThreadPool(FETCH_THREADS, r -> {
+            Thread t = new Thread(r, "image-fetch-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setTtlMillis(long ttlMillis)
+    {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    private static String sha256(byte[] b)
+    {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(b));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] digest)
+    {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get local copies of images, fetching those which aren't cached at the same time.  Images which can't be
+     * fetched are left out, so that the converters try them as before.  The images returned are pinned, and must
+     * be {@link #release released} once they're no longer used.
+     *
+     * @param srcs absolute URLs of images; those which aren't HTTP or HTTPS are ignored
+     * @return URL -> cached image, for the images which are available
+     */
+    public Map<String, Path> getAll(Collection<String> srcs)
+    {
+        synchronized (this) {
+            fetching++;
+        }
+        HashMap<String, Path> local = new HashMap<>();
+        try {
+            fetchAll(srcs, local);
+        } finally {
+            synchronized (this) {
+                for (Path p : local.values()) {
+                    pinned.merge(p, 1, Integer::sum);
+                }
+                if (--fetching == 0 && evictPending) {
+                    evictPending = false;
+                    evict();
+                }
+            }
+        }
+        return local;
+    }
+
+    /**
+     * Unpin images returned by {@link #getAll}.
+     *
+     * @param images cached images
+     */
+    public synchronized void release(Collection<Path> images)
+    {
+        for (Path p : images) {
+            pinned.computeIfPresent(p, (k, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    private void fetchAll(Collection<String> srcs, Map<String, Path> local)
+    {
+        HashMap<String, CompletableFuture<Path>> pending = new HashMap<>();
+        for (String src : srcs) {
+            String lower = src.toLowerCase(Locale.ROOT);
+            if ((lower.startsWith("http://") || lower.startsWith("https://")) && !pending.containsKey(src)) {
+                pending.put(src, get(src));
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<Path>> e : pending.entrySet()) {
+            try {
+                Path p = e.getValue().get();
+                if (p != null) {
+                    local.put(e.getKey(), p);
+                }
+            } catch (ExecutionException ex) {
+                logger.warn("Could not fetch image {}", e.getKey(), ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get an image, joining a fetch of it which is already running.
+     *
+     * @param src URL of the image
+     * @return future cached image, or {@code null} if the image is too large
+     */
+    private CompletableFuture<Path> get(String src)
+    {
+        CompletableFuture<Path> f = new CompletableFuture<>();
+        CompletableFuture<Path> running = inFlight.putIfAbsent(src, f);
+        if (running != null) {
+            return running;
+        }
+        fetcher.execute(() -> {
+            try {
+                f.complete(lookUpOrFetch(src));
+            } catch (Throwable t) {
+                f.completeExceptionally(t);
+            } finally {
+                inFlight.remove(src, f);
+            }
+        });
+        return f;
+    }
+
+    private Path lookUpOrFetch(String src)
+    throws IOException
+    {
+        String urlKey = sha256(src.getBytes(StandardCharsets.UTF_8));
+        Path record = urls.resolve(urlKey);
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(record).toMillis() < ttlMillis) {
+                Path image = images.resolve(new String(Files.readAllBytes(record), StandardCharsets.UTF_8).trim());
+                if (Files.isRegularFile(image)) {
+                    Files.setLastModifiedTime(image, FileTime.fromMillis(System.currentTimeMillis()));
+                    logger.debug("Image cache hit for {} ({} hits, {} misses)", src, hits.incrementAndGet(),
+                            misses.get());
+                    return image;
+                }
+            }
+        } catch (NoSuchFileException ignored) {
+        }
+        logger.debug("Image cache miss for {} ({} hits, {} misses)", src, hits.get(), misses.incrementAndGet());
+        Path image = fetch(src);
+        if (image != null) {
+            writeAtomically(record, image.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            synchronized (this) {
+                evictPending = true;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Download an image into the cache, under the hash of its contents.
+     *
+     * @param src URL of the image
+     * @return cached image, or {@code null} if the image is too large
+     * @throws IOException if the image could not be downloaded
+     */
+    private Path fetch(String src)
+    throws IOException
+    {
+        HttpURLConnection c = (HttpURLConnection) new URL(src).openConnection();
+        c.setConnectTimeout(CONNECT_TIMEOUT);
+        c.setReadTimeout(READ_TIMEOUT);
+        int status = c.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            c.disconnect();
+            throw new IOException("HTTP " + status + " from " + src);
+        }
+        if (c.getContentLengthLong() > MAX_IMAGE_BYTES) {
+            c.disconnect();
+            return null;
+        }
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        Files.createDirectories(images);
+        Path tmp = Files.createTempFile(images, "fetch", TEMP_SUFFIX);
+        try {
+            long total = 0;
+            try (InputStream is = c.getInputStream(); OutputStream os = Files.newOutputStream(tmp)) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    total += n;
+                    if (total > MAX_IMAGE_BYTES) {
+                        return null;
+                    }
+                    md.update(buf, 0, n);
+                    os.write(buf, 0, n);
+                }
+            }
+            Path image = images.resolve(hex(md.digest()) + '.' + extension(c.getContentType(), src));
+            if (!Files.exists(image)) {
+                // otherwise, the same image was fetched from another URL
+                Files.move(tmp, image, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return image;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @param contentType content type reported by the server, which may be {@code null}
+     * @param src         URL of the image
+     * @return file extension for the image
+     */
+    private static String extension(String contentType, String src)
+    {
+        if (contentType != null) {
+            int semi = contentType.indexOf(';');
+            String ext = EXTENSIONS.get((semi < 0 ? contentType : contentType.substring(0, semi))
+                    .trim().toLowerCase(Locale.ROOT));
+            if (ext != null) {
+                return ext;
+            }
+        }
+        String path = src;
+        int end = path.length();
+        for (char c : new char[]{'#', '?'}) {
+            int i = path.indexOf(c);
+            if (i >= 0 && i < end) {
+                end = i;
+            }
+        }
+        path = path.substring(0, end);
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf('/')) {
+            String ext = path.substring(dot + 1).toLowerCase(Locale.ROOT);
+            if (EXTENSIONS.containsValue(ext) || ext.equals("jpeg")) {
+                return ext;
+            }
+        }
+        return "img";
+    }
+
+    private void writeAtomically(Path target, byte[] contents)
+    throws IOException
+    {
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            Files.write(tmp, contents);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Delete the least recently used images which aren't pinned until the cache fits within its limit, and the
+     * records of URLs which have outlived their time to live.  Errors are logged, since the images were fetched
+     * anyway.  Must be called while holding the lock on this.
+     */
+    private void evict()
+    {
+        try {
+            ArrayList<Entry> entries = new ArrayList<>();
+            long total = 0;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(images)) {
+                for (Path p : ds) {
+                    if (!p.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                        BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                        entries.add(new Entry(p, a.size(), a.lastModifiedTime().toMillis()));
+                        total += a.size();
+                    }
+                }
+            }
+            long max = maxBytes;
+            if (total > max) {
+                entries.sort(Comparator.comparingLong(e -> e.lastUsed));
+                for (Entry e : entries) {
+                    if (pinned.containsKey(e.path)) {
+                        continue;
+                    }
+                    try {
+                        Files.delete(e.path);
+                        logger.debug("Evicted {}", e.path);
+                    } catch (NoSuchFileException ignored) {
+                    }
+                    total -= e.size;
+                    if (total <= max) {
+                        break;
+                    }
+                }
+            }
+            long expired = System.currentTimeMillis() - ttlMillis;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(urls)) {
+                for (Path p : ds) {
+                    try {
+                        if (Files.getLastModifiedTime(p).toMillis() < expired) {
+                            Files.delete(p);
+                        }
+                    } catch (NoSuchFileException ignored) {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not evict images from cache", e);
+        }
+    }
+
+    private static class Entry
+    {
+        private final Path path;
+        private final long size;
+        private final long lastUsed;
+
+        private Entry(Path path, long size, long lastUsed)
+        {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -16,34 +16,109 @@
 
 package io.github.thomashuss.cpterm.artifacts.html;
 
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 
 /**
- * A convertor which delegates to the LibreOffice Writer command-line API.
+ * A convertor which delegates to the LibreOffice Writer command-line API.  If workers are enabled, each worker is
+ * an {@link OfficeWorker} which stays running between conversions, unless there are additional command line
+ * arguments, which only the command-line API understands.  Documents whose output type has no known filter, and
+ * documents the office fails to convert, are converted with the command-line API.
  */
 public class LibreofficeConverter
         extends TempFileExternalConverter
 {
+    /**
+     * Output file extension -> Writer export filter.
+     */
+    private static final Map<String, String> FILTERS = new HashMap<>();
+
+    static {
+        FILTERS.put("pdf", "writer_pdf_Export");
+        FILTERS.put("odt", "writer8");
+        FILTERS.put("fodt", "OpenDocument Text Flat XML");
+        FILTERS.put("docx", "MS Word 2007 XML");
+        FILTERS.put("doc", "MS Word 97");
+        FILTERS.put("rtf", "Rich Text Format");
+        FILTERS.put("txt", "Text");
+        FILTERS.put("htm", "HTML (StarWriter)");
+        FILTERS.put("html", "HTML (StarWriter)");
+        FILTERS.put("xhtml", "XHTML Writer File");
+        FILTERS.put("epub", "EPUB");
+    }
+
+    private Path workerProfile;
+    /**
+     * Executable and profile with which an office last failed to start, so it isn't tried for every conversion.
+     */
+    private volatile String failedWith;
+
     LibreofficeConverter()
     {
     }
 
     /**
-     * Create an HTML string which is useful as an input to LibreOffice.
+     * Create HTML which is useful as an input to LibreOffice.  Images are taken from the image cache for PDF,
+     * which embeds them; Writer's other formats link to the images it imports from HTML.
      *
-     * @param html    HTML pulled from the website
-     * @param baseUri URI the HTML was pulled from
+     * @param problem     problem statement
+     * @param outFileName name of output file, used for determining output type
      * @return LibreOffice-friendly HTML
      */
-    private static String prepareForLibreoffice(String html, String baseUri)
+    private static PreparedHtml prepareForLibreoffice(ProblemDocument problem, String outFileName)
+    {
+        Document doc = outFileName.endsWith(".pdf")
+                ? problem.getWithLocalImages(ProblemDocument.Svg.RENDER_SCALED)
+                : problem.get(ProblemDocument.Svg.RENDER_SCALED);
+        return doc::html;
+    }
+
+    /**
+     * Enable or disable workers which stay running between conversions.
+     *
+     * @param profile directory under which each worker gets a LibreOffice user profile, or {@code null} to start
+     *                LibreOffice for each conversion
+     */
+    public synchronized void setWorker(Path profile)
+    {
+        if (!Objects.equals(profile, workerProfile)) {
+            workerProfile = profile;
+            pool.reset();
+        }
+    }
+
+    @Override
+    protected ConversionWorker newWorker(int slot)
+    throws IOException
     {
-        Document doc = ConversionUtils.clean(Jsoup.parse(Objects.requireNonNull(html), baseUri));
-        ConversionUtils.renderSvgElements(doc, true);
-        return doc.outerHtml();
+        Path profile;
+        String exe;
+        boolean plain;
+        synchronized (this) {
+            profile = workerProfile;
+            exe = exePath;
+            plain = args.isEmpty();
+        }
+        if (profile != null && exe != null && plain) {
+            profile = profile.resolve(String.valueOf(slot));
+            String config = exe + '\0' + profile;
+            if (!config.equals(failedWith)) {
+                OfficeWorker office = new OfficeWorker(exe, profile);
+                try {
+                    office.start();
+                    return new Worker(office);
+                } catch (IOException e) {
+                    failedWith = config;
+                    logger.warn("Could not start LibreOffice worker, starting LibreOffice for each conversion", e);
+                }
+            }
+        }
+        return new ProcessWorker();
     }
 
     @Override
@@ -77,9 +152,69 @@ public class LibreofficeConverter
     }
 
     @Override
-    protected void doConvert(String outerHtml, String baseUri, Path outputFile)
+    protected void doConvert(ProblemDocument problem, Path outputFile)
     throws ConversionException
     {
-        writeToProcess(prepareForLibreoffice(outerHtml, baseUri), outputFile);
+        writeToProcess(prepareForLibreoffice(problem, outputFile.getFileName().toString()), outputFile);
+    }
+
+    /**
+     * A worker backed by an office, which falls back to a new LibreOffice for documents the office can't
+     * convert.
+     */
+    private class Worker
+            extends ProcessWorker
+    {
+        private final OfficeWorker office;
+
+        private Worker(OfficeWorker office)
+        {
+            this.office = office;
+        }
+
+        @Override
+        public void convert(PreparedHtml html, Path output)
+        throws ConversionException
+        {
+            String name = output.getFileName().toString();
+            String filter = FILTERS.get(name.substring(name.lastIndexOf('.') + 1));
+            if (filter != null) {
+                Path temp = null;
+                try {
+                    temp = writeTempFile(html, output);
+                    office.convert(temp.toAbsolutePath(), output.toAbsolutePath(), filter);
+                    return;
+                } catch (IOException e) {
+                    if (office.isLost()) {
+                        throw new ConversionException(e);
+                    }
+                    logger.warn("LibreOffice worker failed, starting LibreOffice for this conversion", e);
+                } finally {
+                    if (temp != null) {
+                        deleteTempFile(temp);
+                    }
+                }
+            }
+            super.convert(html, output);
+        }
+
+        @Override
+        public boolean isReusable()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isLost()
+        {
+            return office.isLost();
+        }
+
+        @Override
+        public void close()
+        {
+            super.close();
+            office.stop();
+        }
     }
 }
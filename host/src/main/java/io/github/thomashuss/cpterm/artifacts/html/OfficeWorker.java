@@ -0,0 +1,338 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import com.sun.star.beans.PropertyValue;
+import com.sun.star.bridge.BridgeFactory;
+import com.sun.star.bridge.XBridge;
+import com.sun.star.comp.helper.Bootstrap;
+import com.sun.star.connection.NoConnectException;
+import com.sun.star.connection.XConnection;
+import com.sun.star.frame.Desktop;
+import com.sun.star.frame.XComponentLoader;
+import com.sun.star.frame.XDesktop2;
+import com.sun.star.frame.XStorable;
+import com.sun.star.lang.DisposedException;
+import com.sun.star.lang.XComponent;
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.uno.XComponentContext;
+import com.sun.star.util.CloseVetoException;
+import com.sun.star.util.XCloseable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A headless LibreOffice which keeps running between conversions, so only the first conversion pays for
+ * starting it.  The office listens on a loopback port and is driven through a {@link Connector}; by default,
+ * over UNO.  It gets its own user profile, so it never hands its work to an office the user has open.  Offices
+ * still running when the program exits are stopped.
+ * <p>
+ * Only the lifecycle has been exercised, against a fake office and {@code Connector}; the UNO connector is
+ * untested against a real LibreOffice.
+ */
+class OfficeWorker
+{
+    private static final Logger logger = LoggerFactory.getLogger(OfficeWorker.class);
+    private static final long CONNECT_TIMEOUT = 60000;
+    private static final long CONNECT_INTERVAL = 100;
+    private static final long EXIT_TIMEOUT = 5000;
+    /**
+     * Processes of every worker, for the shutdown hook.
+     */
+    private static final Set<Process> running = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> running.forEach(Process::destroy)));
+    }
+
+    private final String exePath;
+    private final Path profile;
+    private final Connector connector;
+    private volatile Process process;
+    private volatile Client client;
+
+    /**
+     * Create a worker which talks to the office over UNO.
+     *
+     * @param exePath path to the office executable
+     * @param profile directory for the office's user profile
+     */
+    OfficeWorker(String exePath, Path profile)
+    {
+        this(exePath, profile, Uno::connect);
+    }
+
+    /**
+     * @param exePath   path to the office executable
+     * @param profile   directory for the office's user profile
+     * @param connector connects to the office once it's started
+     */
+    OfficeWorker(String exePath, Path profile, Connector connector)
+    {
+        this.exePath = exePath;
+        this.profile = profile;
+        this.connector = connector;
+    }
+
+    /**
+     * Start the office, and wait until it can take conversions.
+     *
+     * @throws IOException if the office could not be started or connected to
+     */
+    void start()
+    throws IOException
+    {
+        long start = System.nanoTime();
+        Files.createDirectories(profile);
+        int port;
+        try (ServerSocket s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = s.getLocalPort();
+        }
+        Process p = new ProcessBuilder(exePath, "--headless", "--invisible", "--nologo", "--nodefault",
+                "--norestore", "--nolockcheck", "-env:UserInstallation=" + profile.toUri(),
+                "--accept=socket,host=127.0.0.1,port=" + port + ";urp;StarOffice.ComponentContext")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(profile.toFile(), "worker.log")))
+                .start();
+        process = p;
+        running.add(p);
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (true) {
+            try {
+                client = connector.connect(port);
+                break;
+            } catch (IOException e) {
+                if (!p.isAlive() || System.currentTimeMillis() > deadline) {
+                    stop();
+                    throw new IOException("Could not connect to office", e);
+                }
+            }
+            try {
+                Thread.sleep(CONNECT_INTERVAL);
+            } catch (InterruptedException e) {
+                stop();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while connecting to office", e);
+            }
+        }
+        logger.info("Started office in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Convert a document.
+     *
+     * @param input  document to convert
+     * @param output file to write the document to
+     * @param filter name of the office's export filter
+     * @throws IOException if the conversion failed
+     */
+    void convert(Path input, Path output, String filter)
+    throws IOException
+    {
+        Client c = client;
+        if (c == null) {
+            throw new IOException("Office is not running");
+        }
+        c.convert(input, output, filter);
+    }
+
+    /**
+     * @return whether the office died or the connection to it was lost
+     */
+    boolean isLost()
+    {
+        Client c = client;
+        Process p = process;
+        return c == null || !c.isConnected() || p == null || !p.isAlive();
+    }
+
+    /**
+     * Stop the office, if it's running.
+     */
+    void stop()
+    {
+        Client c = client;
+        if (c != null) {
+            client = null;
+            c.close();
+        }
+        Process p = process;
+        if (p != null) {
+            process = null;
+            try {
+                if (!p.waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    p.destroy();
+                    if (!p.waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        p.destroyForcibly();
+                    }
+                }
+            } catch (InterruptedException e) {
+                p.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            running.remove(p);
+            logger.info("Stopped office");
+        }
+    }
+
+    /**
+     * Connects to an office which was started to listen on a port.
+     */
+    interface Connector
+    {
+        /**
+         * @param port loopback port the office listens on
+         * @return connection to the office
+         * @throws IOException if the office can't be reached, which may be because it isn't listening yet
+         */
+        Client connect(int port)
+        throws IOException;
+    }
+
+    /**
+     * Connection to a running office.
+     */
+    interface Client
+    {
+        /**
+         * @param input  document to convert
+         * @param output file to write the document to
+         * @param filter name of the office's export filter
+         * @throws IOException if the conversion failed
+         */
+        void convert(Path input, Path output, String filter)
+        throws IOException;
+
+        /**
+         * @return {@code false} if the connection was lost
+         */
+        boolean isConnected();
+
+        /**
+         * Ask the office to exit, and close the connection.
+         */
+        void close();
+    }
+
+    /**
+     * A {@link Client} which speaks UNO.  The UNO runtime is only loaded when an office is first connected to.
+     */
+    private static class Uno
+            implements Client
+    {
+        private final XComponent bridge;
+        private final XDesktop2 desktop;
+        private volatile boolean connected = true;
+
+        private Uno(XComponent bridge, XDesktop2 desktop)
+        {
+            this.bridge = bridge;
+            this.desktop = desktop;
+        }
+
+        private static Client connect(int port)
+        throws IOException
+        {
+            try {
+                XComponentContext local = Bootstrap.createInitialComponentContext(null);
+                XConnection c = com.sun.star.connection.Connector.create(local)
+                        .connect("socket,host=127.0.0.1,port=" + port);
+                XBridge bridge = BridgeFactory.create(local).createBridge("", "urp", c, null);
+                XComponentContext remote = UnoRuntime.queryInterface(XComponentContext.class,
+                        bridge.getInstance("StarOffice.ComponentContext"));
+                return new Uno(UnoRuntime.queryInterface(XComponent.class, bridge), Desktop.create(remote));
+            } catch (NoConnectException e) {
+                throw new IOException(e);
+            } catch (Exception e) {
+                throw new IOException("Could not set up UNO connection", e);
+            }
+        }
+
+        private static PropertyValue property(String name, Object value)
+        {
+            PropertyValue p = new PropertyValue();
+            p.Name = name;
+            p.Value = value;
+            return p;
+        }
+
+        @Override
+        public void convert(Path input, Path output, String filter)
+        throws IOException
+        {
+            try {
+                XComponent doc = UnoRuntime.queryInterface(XComponentLoader.class, desktop)
+                        .loadComponentFromURL(input.toUri().toString(), "_blank", 0, new PropertyValue[]{
+                                property("Hidden", true),
+                                property("FilterName", "HTML (StarWriter)")});
+                if (doc == null) {
+                    throw new IOException("Office could not open " + input);
+                }
+                try {
+                    UnoRuntime.queryInterface(XStorable.class, doc).storeToURL(output.toUri().toString(),
+                            new PropertyValue[]{property("FilterName", filter), property("Overwrite", true)});
+                } finally {
+                    XCloseable closeable = UnoRuntime.queryInterface(XCloseable.class, doc);
+                    if (closeable != null) {
+                        try {
+                            closeable.close(true);
+                        } catch (CloseVetoException ignored) {
+                        }
+                    } else {
+                        doc.dispose();
+                    }
+                }
+            } catch (DisposedException e) {
+                connected = false;
+                throw new IOException("Connection to office was lost", e);
+            } catch (com.sun.star.uno.Exception | com.sun.star.uno.RuntimeException e) {
+                throw new IOException("Office could not convert " + input, e);
+            }
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return connected;
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                if (connected) {
+                    desktop.terminate();
+                }
+            } catch (DisposedException ignored) {
+                // office exited before it could reply
+            } finally {
+                connected = false;
+                bridge.dispose();
+            }
+        }
+    }
+}
@@ -16,11 +16,12 @@
 
 package io.github.thomashuss.cpterm.artifacts.html;
 
+import com.openhtmltopdf.pdfboxout.PdfBoxRenderer;
 import com.openhtmltopdf.pdfboxout.PdfRendererBuilder;
 import com.openhtmltopdf.slf4j.Slf4jLogger;
 import com.openhtmltopdf.svgsupport.BatikSVGDrawer;
 import com.openhtmltopdf.util.XRLog;
-import org.jsoup.Jsoup;
+import org.apache.pdfbox.pdmodel.PDDocument;
 import org.jsoup.helper.W3CDom;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -39,34 +40,87 @@ public class OpenHtmlToPdfConverter
         implements Converter
 {
     private static final Logger logger = LoggerFactory.getLogger(OpenHtmlToPdfConverter.class);
-    private static final BatikSVGDrawer drawer = new BatikSVGDrawer();
+    private String fontSpec = "";
+    private volatile PdfFonts fonts = PdfFonts.NONE;
+    private volatile boolean optimize;
 
-    static {
-        XRLog.setLoggerImpl(new Slf4jLogger());
+    OpenHtmlToPdfConverter()
+    {
     }
 
-    OpenHtmlToPdfConverter()
+    /**
+     * Set the fonts registered with every document.  The font files are read now, rather than for each document.
+     *
+     * @param spec comma-separated fonts of the form {@code family[:weight[:style]]=path}, where the family
+     *             defaults to the file's name
+     */
+    public synchronized void setFonts(String spec)
+    {
+        if (!spec.equals(fontSpec)) {
+            fonts = PdfFonts.read(spec);
+            fontSpec = spec;
+        }
+    }
+
+    /**
+     * Enable or disable optimizing PDFs before they're written, which merges identical images, compresses
+     * uncompressed streams, and removes unused resources.
+     *
+     * @param optimize true to optimize PDFs
+     */
+    public void setOptimize(boolean optimize)
+    {
+        this.optimize = optimize;
+    }
+
+    @Override
+    public synchronized String getCacheKey()
     {
+        return getClass().getName() + '\0' + fontSpec + '\0' + optimize;
     }
 
     @Override
-    public void convert(String outerHtml, String baseUri, Path outputFile)
+    public void convert(ProblemDocument problem, Path outputFile)
     throws ConversionException
     {
-        Document jdoc = ConversionUtils.clean(Jsoup.parse(outerHtml));
+        Document jdoc = problem.getWithLocalImages(ProblemDocument.Svg.KEEP).clone();
         jdoc.head().appendChild(new Element("style").html("pre{white-space:pre-wrap;}"));
 
         org.w3c.dom.Document doc = W3CDom.convert(jdoc);
         try (FileOutputStream fos = new FileOutputStream(outputFile.toFile());
              BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-            new PdfRendererBuilder()
-                    .withW3cDocument(doc, baseUri)
+            PdfRendererBuilder builder = new PdfRendererBuilder()
+                    .withW3cDocument(doc, problem.getBaseUri())
                     .toStream(bos)
-                    .useSVGDrawer(drawer)
-                    .run();
+                    .useSVGDrawer(Renderer.drawer);
+            fonts.applyTo(builder);
+            if (optimize) {
+                try (PdfBoxRenderer renderer = builder.buildPdfRenderer()) {
+                    renderer.layout();
+                    renderer.createPDFWithoutClosing();
+                    PDDocument pdf = renderer.getPdfDocument();
+                    PdfOptimizer.optimize(pdf);
+                    pdf.save(bos);
+                }
+            } else {
+                builder.run();
+            }
         } catch (IOException e) {
             logger.error("Open HTML to PDF failed", e);
             throw new ConversionException(e);
         }
     }
+
+    /**
+     * Holds what the renderer shares between documents, so that it's only set up when the first document
+     * is converted.
+     */
+    private static class Renderer
+    {
+        private static final BatikSVGDrawer drawer = new BatikSVGDrawer();
+
+        static {
+            XRLog.setLoggerImpl(new Slf4jLogger());
+        }
+    }
 }
@@ -16,79 +16,161 @@
 
 package io.github.thomashuss.cpterm.artifacts.html;
 
-import org.jsoup.Jsoup;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.io.IOUtils;
 import org.jsoup.nodes.Document;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 /**
- * A converter which delegates to Pandoc.
+ * A converter which delegates to Pandoc.  If the server is enabled, each worker runs {@code pandoc server} and
+ * posts documents to it, unless there are additional command line arguments, which the server doesn't take.
+ * Documents the server can't write, such as PDF, which needs a PDF engine, are converted by a new Pandoc.  So
+ * are documents which embed their images, such as DOCX, since the server can't read files or fetch URLs.
  */
 public class PandocConverter
         extends PipedExternalConverter
 {
-    private static final Map<String, String> REPLACE = new HashMap<>(2);
-    private static final Pattern REPLACE_PATTERN;
+    private static final String INPUT_FORMAT = "html+tex_math_dollars";
+    /**
+     * Output file extension -> Pandoc output format, for the server, which doesn't guess the format.  Only
+     * formats which link to images rather than embedding them are listed.
+     */
+    private static final Map<String, String> FORMATS = new HashMap<>();
+    private static final long START_TIMEOUT = 10000;
+    private static final long START_INTERVAL = 50;
+    /**
+     * Times the server is started on a new port if it exits before accepting connections, as when another
+     * program took its port first.
+     */
+    private static final int START_ATTEMPTS = 3;
+    /**
+     * Output file extensions of formats which embed their images, so images are taken from the image cache.
+     * Other formats link to the images, so they keep the remote ones.
+     */
+    private static final Set<String> EMBEDDING = new HashSet<>(Arrays.asList("docx", "epub", "odt", "pdf", "rtf"));
+    private static final File NULL_FILE
+            = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
 
     static {
-        REPLACE.put("≤", "$\\leq$");
-        REPLACE.put("≥", "$\\geq$");
-        REPLACE_PATTERN = Pattern.compile(
-                REPLACE.keySet().stream().reduce("(", (r, s) -> r.length() == 1 ? r + s : r + "|" + s) + ")");
+        FORMATS.put("adoc", "asciidoc");
+        FORMATS.put("htm", "html");
+        FORMATS.put("html", "html");
+        FORMATS.put("md", "markdown");
+        FORMATS.put("org", "org");
+        FORMATS.put("rst", "rst");
+        FORMATS.put("tex", "latex");
+        FORMATS.put("txt", "plain");
+        FORMATS.put("typ", "typst");
     }
 
+    private boolean useServer;
+    private String texSymbols = "";
+    private volatile TexRewriter tex = TexRewriter.DEFAULT;
+    /**
+     * Executable with which the server last failed to start, so it isn't tried for every conversion.
+     */
+    private volatile String failedWith;
+
     PandocConverter()
     {
     }
 
     /**
-     * Create an HTML string which is useful as an input to Pandoc.
+     * Enable or disable workers which run {@code pandoc server}.
      *
-     * @param outerHtml   HTML pulled from the website
-     * @param baseUri     URI the HTML was pulled from
-     * @param outFileName name of output file, used for determining output type
-     * @return Pandoc-friendly HTML
+     * @param useServer true to convert with the server when possible
      */
-    private static String prepareForPandoc(String outerHtml, String baseUri, String outFileName)
+    public synchronized void setServer(boolean useServer)
     {
-        Document doc = ConversionUtils.clean(Jsoup.parse(Objects.requireNonNull(outerHtml), baseUri));
-        ConversionUtils.renderSvgElements(doc, outFileName.endsWith(".pdf"));
-        return replaceWithTex(doc.outerHtml());
+        if (useServer != this.useServer) {
+            this.useServer = useServer;
+            pool.reset();
+        }
     }
 
     /**
-     * Replace some raw characters in HTML with their TeX equivalents.  If the {@code tex_math_dollars}
-     * parameter is set on the {@code html} Pandoc filter, this TeX code will be passed directly to TeX.
+     * Change which symbols in the text are rewritten to TeX math.
      *
-     * @param html HTML code to search
-     * @return HTML code with characters replaced.
+     * @param spec whitespace-separated {@code symbol=tex} pairs, added to or replacing the default symbols; a
+     *             symbol given without TeX is not rewritten
      */
-    private static String replaceWithTex(String html)
+    public synchronized void setTexSymbols(String spec)
     {
-        Matcher matcher = REPLACE_PATTERN.matcher(html);
-        if (matcher.find()) {
-            StringBuilder buf = new StringBuilder(html.length() + 16);
-            int i = 0;
-            int pos;
-            do {
-                pos = matcher.start();
-                while (i < pos) {
-                    buf.appendCodePoint(html.codePointAt(i++));
-                }
-                i = matcher.end();
-                buf.append(REPLACE.get(matcher.group()));
-            } while (matcher.find());
-            while (i < html.length()) {
-                buf.appendCodePoint(html.codePointAt(i++));
+        if (!spec.equals(texSymbols)) {
+            tex = TexRewriter.withChanges(spec);
+            texSymbols = spec;
+        }
+    }
+
+    @Override
+    public synchronized String getCacheKey()
+    {
+        return super.getCacheKey() + '\0' + texSymbols;
+    }
+
+    /**
+     * Create HTML which is useful as an input to Pandoc.  Symbols in the text are rewritten to TeX math, which
+     * Pandoc passes to TeX since the {@code tex_math_dollars} extension is set on its reader.
+     *
+     * @param problem     problem statement
+     * @param outFileName name of output file, used for determining output type
+     * @return Pandoc-friendly HTML
+     */
+    private PreparedHtml prepareForPandoc(ProblemDocument problem, String outFileName)
+    {
+        ProblemDocument.Svg svg = outFileName.endsWith(".pdf")
+                ? ProblemDocument.Svg.RENDER_SCALED : ProblemDocument.Svg.RENDER;
+        Document doc = (EMBEDDING.contains(outFileName.substring(outFileName.lastIndexOf('.') + 1))
+                ? problem.getWithLocalImages(svg) : problem.get(svg)).clone();
+        tex.rewrite(doc.body());
+        return doc::html;
+    }
+
+    @Override
+    protected ConversionWorker newWorker(int slot)
+    throws IOException
+    {
+        boolean server;
+        String exe;
+        boolean plain;
+        synchronized (this) {
+            server = useServer;
+            exe = exePath;
+            plain = args.isEmpty();
+        }
+        if (server && exe != null && plain && !exe.equals(failedWith)) {
+            Server worker = new Server();
+            try {
+                worker.start(exe);
+                return worker;
+            } catch (IOException e) {
+                failedWith = exe;
+                worker.close();
+                logger.warn("Could not start Pandoc server, starting Pandoc for each conversion", e);
             }
-            return buf.toString();
         }
-        return html;
+        return new ProcessWorker();
     }
 
     @Override
@@ -103,16 +185,170 @@ public class PandocConverter
             }
         }
         cmd[i] = "-f";
-        cmd[i + 1] = "html+tex_math_dollars";
+        cmd[i + 1] = INPUT_FORMAT;
         cmd[i + 2] = "-o";
         cmd[i + 3] = output.toString();
         return new ProcessBuilder(cmd);
     }
 
     @Override
-    protected void doConvert(String outerHtml, String baseUri, Path outputFile)
+    protected void doConvert(ProblemDocument problem, Path outputFile)
     throws ConversionException
     {
-        writeToProcess(prepareForPandoc(outerHtml, baseUri, outputFile.getFileName().toString()), outputFile);
+        writeToProcess(prepareForPandoc(problem, outputFile.getFileName().toString()), outputFile);
+    }
+
+    /**
+     * A worker which runs {@code pandoc server}, and falls back to a new Pandoc for documents the server can't
+     * write.
+     */
+    private class Server
+            extends ProcessWorker
+    {
+        private volatile Process server;
+        private volatile HttpURLConnection request;
+        private URL url;
+
+        /**
+         * Start the server, and wait until it accepts connections.  The port is found free before the server
+         * is started, so another program may take it in between; the server is then started again on another
+         * port.
+         *
+         * @param exe path to Pandoc
+         * @throws IOException if the server could not be started
+         */
+        private void start(String exe)
+        throws IOException
+        {
+            for (int attempt = 1; ; attempt++) {
+                int port;
+                try (ServerSocket s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                    port = s.getLocalPort();
+                }
+                Process p = server = new ProcessBuilder(exe, "server", "--port", String.valueOf(port))
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.appendTo(NULL_FILE))
+                        .start();
+                InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+                if (awaitStart(p, address)) {
+                    url = new URL("http", address.getHostString(), port, "/");
+                    return;
+                }
+                if (attempt == START_ATTEMPTS) {
+                    throw new IOException("Pandoc server exited with code " + p.exitValue());
+                }
+                logger.debug("Pandoc server exited while starting on port {}, trying another port", port);
+            }
+        }
+
+        /**
+         * Wait until a starting server accepts connections.
+         *
+         * @param p       server process
+         * @param address address the server binds
+         * @return {@code true} if the server accepts connections, {@code false} if it exited first
+         * @throws IOException if the server doesn't accept connections in time
+         */
+        private boolean awaitStart(Process p, InetSocketAddress address)
+        throws IOException
+        {
+            long deadline = System.currentTimeMillis() + START_TIMEOUT;
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(address, (int) START_INTERVAL);
+                    return true;
+                } catch (IOException e) {
+                    if (!p.isAlive()) {
+                        return false;
+                    } else if (System.currentTimeMillis() > deadline) {
+                        throw new IOException("Pandoc server did not start", e);
+                    }
+                }
+                try {
+                    Thread.sleep(START_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while starting Pandoc server", e);
+                }
+            }
+        }
+
+        @Override
+        public void convert(PreparedHtml html, Path output)
+        throws ConversionException
+        {
+            String name = output.getFileName().toString();
+            String format = FORMATS.get(name.substring(name.lastIndexOf('.') + 1));
+            if (format == null) {
+                super.convert(html, output);
+                return;
+            }
+            try {
+                ObjectNode body = Json.mapper.createObjectNode()
+                        .put("text", html.asString())
+                        .put("from", INPUT_FORMAT)
+                        .put("to", format);
+                HttpURLConnection c = request = (HttpURLConnection) url.openConnection();
+                c.setRequestMethod("POST");
+                c.setDoOutput(true);
+                c.setRequestProperty("Content-Type", "application/json");
+                c.setRequestProperty("Accept", "application/json");
+                try (OutputStream os = c.getOutputStream()) {
+                    Json.mapper.writeValue(os, body);
+                }
+                if (c.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    String error;
+                    try (InputStream es = c.getErrorStream()) {
+                        error = es == null ? c.getResponseMessage() : IOUtils.toString(es, StandardCharsets.UTF_8);
+                    }
+                    logger.error("Pandoc server error:\n{}", error);
+                    throw new ConversionException(error);
+                }
+                JsonNode result;
+                try (InputStream is = c.getInputStream()) {
+                    result = Json.mapper.readTree(is);
+                }
+                String out = result.path("output").asText();
+                Files.write(output, result.path("base64").asBoolean()
+                        ? Base64.getMimeDecoder().decode(out) : out.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                logger.error("Communication with Pandoc server failed", e);
+                throw new ConversionException(e);
+            } finally {
+                request = null;
+            }
+        }
+
+        @Override
+        public boolean isReusable()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isLost()
+        {
+            Process p = server;
+            return p == null || !p.isAlive();
+        }
+
+        @Override
+        public void close()
+        {
+            super.close();
+            HttpURLConnection c = request;
+            if (c != null) {
+                c.disconnect();
+            }
+            Process p = server;
+            if (p != null) {
+                p.destroy();
+            }
+        }
+    }
+
+    private static final class Json
+    {
+        private static final ObjectMapper mapper = new ObjectMapper();
     }
 }
@@ -0,0 +1,166 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import com.openhtmltopdf.extend.FSCacheEx;
+import com.openhtmltopdf.extend.FSCacheValue;
+import com.openhtmltopdf.extend.FSSupplier;
+import com.openhtmltopdf.outputdevice.helper.BaseRendererBuilder;
+import com.openhtmltopdf.pdfboxout.PdfRendererBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fonts registered with every document Open HTML to PDF renders.  The font files are read once, when the fonts
+ * are configured, and the metrics Open HTML to PDF parses from them are shared between documents, so a large
+ * font, such as a CJK one, isn't read and parsed again for every problem.  Fonts are embedded as subsets of the
+ * glyphs each document uses.
+ */
+final class PdfFonts
+{
+    private static final Logger logger = LoggerFactory.getLogger(PdfFonts.class);
+    static final PdfFonts NONE = new PdfFonts(Collections.emptyList());
+
+    private final List<Font> fonts;
+    private final MetricsCache metrics = new MetricsCache();
+
+    private PdfFonts(List<Font> fonts)
+    {
+        this.fonts = fonts;
+    }
+
+    /**
+     * Read the fonts given by a specification of the form {@code family[:weight[:style]]=path,...}, where the
+     * style is {@code normal}, {@code italic}, or {@code oblique}.  If the family is left out, as in
+     * {@code =path} or {@code path}, it's the font file's name without its extension.  Fonts which can't be read
+     * are logged and left out.
+     *
+     * @param spec comma-separated font specifications
+     * @return fonts
+     */
+    static PdfFonts read(String spec)
+    {
+        ArrayList<Font> fonts = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int eq = entry.indexOf('=');
+            Path path = Paths.get(entry.substring(eq + 1).trim());
+            String[] desc = eq < 0 ? new String[0] : entry.substring(0, eq).split(":");
+            String family = desc.length == 0 || desc[0].trim().isEmpty() ? familyOf(path) : desc[0].trim();
+            try {
+                int weight = desc.length > 1 ? Integer.parseInt(desc[1].trim()) : 400;
+                BaseRendererBuilder.FontStyle style = desc.length > 2
+                        ? BaseRendererBuilder.FontStyle.valueOf(desc[2].trim().toUpperCase(Locale.ROOT))
+                        : BaseRendererBuilder.FontStyle.NORMAL;
+                fonts.add(new Font(family, weight, style, Files.readAllBytes(path)));
+                logger.info("Registered font {} from {}", family, path);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.warn("Could not register font {}", entry, e);
+            }
+        }
+        return fonts.isEmpty() ? NONE : new PdfFonts(fonts);
+    }
+
+    private static String familyOf(Path path)
+    {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Register the fonts, and the shared font metrics, with a document's builder.
+     *
+     * @param builder builder of the document
+     */
+    void applyTo(PdfRendererBuilder builder)
+    {
+        builder.useCacheStore(PdfRendererBuilder.CacheStore.PDF_FONT_METRICS, metrics);
+        for (Font f : fonts) {
+            byte[] data = f.data;
+            builder.useFont((FSSupplier<InputStream>) () -> new ByteArrayInputStream(data), f.family, f.weight,
+                    f.style, true);
+        }
+    }
+
+    private static class Font
+    {
+        private final String family;
+        private final int weight;
+        private final BaseRendererBuilder.FontStyle style;
+        private final byte[] data;
+
+        private Font(String family, int weight, BaseRendererBuilder.FontStyle style, byte[] data)
+        {
+            this.family = family;
+            this.weight = weight;
+            this.style = style;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Font metrics shared by the documents rendered with a set of fonts.  Builders may be used on several threads
+     * at once, so the cache is concurrent.
+     */
+    private static class MetricsCache
+            implements FSCacheEx<String, FSCacheValue>
+    {
+        private final ConcurrentHashMap<String, FSCacheValue> map = new ConcurrentHashMap<>();
+
+        @Override
+        public void put(String key, FSCacheValue value)
+        {
+            map.put(key, value);
+        }
+
+        @Override
+        public FSCacheValue get(String key, Callable<? extends FSCacheValue> loader)
+        {
+            return map.computeIfAbsent(key, k -> {
+                try {
+                    return loader.call();
+                } catch (Exception e) {
+                    logger.warn("Could not load font metrics for {}", k, e);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public FSCacheValue get(String key)
+        {
+            return map.get(key);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.pdfbox.contentstream.PDContentStream;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shrinks a PDF before it's saved.  The same image may be embedded once for each URL it's loaded from, which
+ * happens when images aren't taken from the {@link ImageCache}; identical images are merged into one, so
+ * viewers also decode it once.  With the image cache, images with the same contents already share a file and
+ * so a single image, and SVG drawings are kept as vectors, so there is usually nothing to merge.  Content streams which were written uncompressed are compressed, and fonts, images and
+ * graphics states which no content stream uses are removed from the resources.
+ */
+final class PdfOptimizer
+{
+    private static final Logger logger = LoggerFactory.getLogger(PdfOptimizer.class);
+    /**
+     * Resource categories which are removed when unused.  Others, such as color spaces, may be named from places
+     * other than content streams, so they're left as they are.
+     */
+    private static final COSName[] STRIPPED = {COSName.XOBJECT, COSName.FONT, COSName.EXT_G_STATE};
+
+    /**
+     * Hash of an image's dictionary and encoded data -> the first image with it.
+     */
+    private final HashMap<Key, PDImageXObject> images = new HashMap<>();
+    /**
+     * Resources -> names used by the content streams which use the resources.
+     */
+    private final IdentityHashMap<COSDictionary, Set<COSName>> used = new IdentityHashMap<>();
+    /**
+     * Form XObjects already scanned, since one may be drawn from many pages.
+     */
+    private final Set<COSStream> scanned = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int merged;
+    private int compressed;
+    private int stripped;
+
+    private PdfOptimizer()
+    {
+    }
+
+    /**
+     * Optimize a document in place.
+     *
+     * @param doc document, before it's saved
+     * @throws IOException if the document could not be read
+     */
+    static void optimize(PDDocument doc)
+    throws IOException
+    {
+        long start = System.nanoTime();
+        PdfOptimizer o = new PdfOptimizer();
+        for (PDPage page : doc.getPages()) {
+            PDResources res = page.getResources();
+            Set<COSName> names = res == null ? new HashSet<>() : o.usedBy(res);
+            Iterator<PDStream> streams = page.getContentStreams();
+            while (streams.hasNext()) {
+                o.compress(streams.next().getCOSObject());
+            }
+            scan(page, names);
+            if (res != null) {
+                o.visit(res);
+            }
+        }
+        o.strip();
+        logger.info("Optimized PDF in {} ms: merged {} duplicate images, compressed {} streams, removed {} resources",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), o.merged, o.compressed, o.stripped);
+    }
+
+    /**
+     * @param res resources
+     * @return names used by the content streams which use the resources, so far
+     */
+    private Set<COSName> usedBy(PDResources res)
+    {
+        return used.computeIfAbsent(res.getCOSObject(), k -> new HashSet<>());
+    }
+
+    /**
+     * Merge the images in some resources with identical images seen before, and go into the forms among them.
+     *
+     * @param res resources
+     */
+    private void visit(PDResources res)
+    throws IOException
+    {
+        Set<COSName> names = usedBy(res);
+        for (COSName name : res.getXObjectNames()) {
+            PDXObject x = res.getXObject(name);
+            if (x instanceof PDImageXObject) {
+                PDImageXObject image = (PDImageXObject) x;
+                PDImageXObject first = images.putIfAbsent(new Key(image.getCOSObject()), image);
+                if (first != null && first.getCOSObject() != image.getCOSObject()) {
+                    res.put(name, first);
+                    merged++;
+                }
+            } else if (x instanceof PDFormXObject) {
+                PDFormXObject form = (PDFormXObject) x;
+                PDResources own = form.getResources();
+                if (own == null) {
+                    // uses the resources of whatever draws it, which may differ each time
+                    compress(form.getCOSObject());
+                    scan(form, names);
+                } else if (scanned.add(form.getCOSObject())) {
+                    compress(form.getCOSObject());
+                    scan(form, usedBy(own));
+                    visit(own);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collect the names a content stream uses.  Every name operand is counted, whatever its operator, so nothing
+     * in use is ever taken for unused.
+     *
+     * @param content content stream
+     * @param names   names used with the content stream's resources
+     */
+    private static void scan(PDContentStream content, Set<COSName> names)
+    throws IOException
+    {
+        PDFStreamParser parser = new PDFStreamParser(content);
+        Object token;
+        while ((token = parser.parseNextToken()) != null) {
+            if (token instanceof COSName) {
+                names.add((COSName) token);
+            }
+        }
+    }
+
+    /**
+     * Compress a stream which has no filter.
+     *
+     * @param stream stream
+     */
+    private void compress(COSStream stream)
+    throws IOException
+    {
+        if (stream.getFilters() == null) {
+            byte[] data;
+            try (InputStream is = stream.createRawInputStream()) {
+                data = IOUtils.toByteArray(is);
+            }
+            try (OutputStream os = stream.createOutputStream(COSName.FLATE_DECODE)) {
+                os.write(data);
+            }
+            compressed++;
+        }
+    }
+
+    /**
+     * Remove resources which no content stream using them names.
+     */
+    private void strip()
+    {
+        for (Map.Entry<COSDictionary, Set<COSName>> e : used.entrySet()) {
+            for (COSName category : STRIPPED) {
+                COSBase d = e.getKey().getDictionaryObject(category);
+                if (d instanceof COSDictionary) {
+                    COSDictionary dict = (COSDictionary) d;
+                    for (COSName name : new ArrayList<>(dict.keySet())) {
+                        if (!e.getValue().contains(name)) {
+                            dict.removeItem(name);
+                            stripped++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies an image by a hash of its dictionary and encoded data.  Streams in the dictionary, such as the
+     * image's soft mask, are hashed by their contents, so two copies of an image with a mask are equal.
+     */
+    private static class Key
+    {
+        private final byte[] hash;
+
+        private Key(COSStream stream)
+        throws IOException
+        {
+            hash = digest(stream);
+        }
+
+        private static byte[] digest(COSStream stream)
+        throws IOException
+        {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            ArrayList<COSName> keys = new ArrayList<>(stream.keySet());
+            Collections.sort(keys);
+            for (COSName k : keys) {
+                md.update(k.getName().getBytes(StandardCharsets.UTF_8));
+                COSBase v = stream.getDictionaryObject(k);
+                md.update(v instanceof COSStream ? digest((COSStream) v)
+                        : String.valueOf(v).getBytes(StandardCharsets.UTF_8));
+            }
+            try (InputStream is = stream.createRawInputStream()) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                }
+            }
+            return md.digest();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Key && Arrays.equals(hash, ((Key) o).hash);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Arrays.hashCode(hash);
+        }
+    }
+}
@@ -16,36 +16,23 @@
 
 package io.github.thomashuss.cpterm.artifacts.html;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.nio.file.Path;
 
 /**
- * An {@link ExternalConverter} which writes to the subprocess's standard input.
+ * An {@link ExternalConverter} which streams the HTML to the subprocess's standard input.
  */
 public abstract class PipedExternalConverter
         extends ExternalConverter
 {
-    protected synchronized final void writeToProcess(String html, Path output)
+    @Override
+    protected final void runProcess(PreparedHtml html, Path output, ProcessWorker worker)
     throws ConversionException
     {
-        try {
-            Process p = getProcess(output).start();
-            try (BufferedReader err = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-                 BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
-                writer.write(html);
-                writer.close();
-                p.waitFor();
-                logError(p.exitValue(), out, err);
-            }
-        } catch (IOException | InterruptedException e) {
-            logger.error("Communication with process failed", e);
-            throw new ConversionException(e);
+        ProcessBuilder pb;
+        synchronized (this) {
+            pb = getProcess(output);
         }
+        worker.run(pb, html);
     }
 
     /**
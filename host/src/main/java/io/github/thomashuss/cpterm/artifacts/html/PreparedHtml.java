@@ -0,0 +1,47 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * HTML prepared for a converter, which is written out when it's needed rather than held as one string.
+ */
+@FunctionalInterface
+interface PreparedHtml
+{
+    /**
+     * @param out where to write the HTML; not closed
+     * @throws IOException if writing failed
+     */
+    void writeTo(Writer out)
+    throws IOException;
+
+    /**
+     * @return the HTML as a string, for consumers which can't take a stream
+     * @throws IOException if writing failed
+     */
+    default String asString()
+    throws IOException
+    {
+        StringWriter sw = new StringWriter();
+        writeTo(sw);
+        return sw.toString();
+    }
+}
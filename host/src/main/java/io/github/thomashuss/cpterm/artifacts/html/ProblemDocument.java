@@ -0,0 +1,223 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A problem statement to convert, which may be shared by several converters running at the same time.  The HTML
+ * is parsed and cleaned once, when a converter first needs it, and each way of handling SVG drawings is prepared
+ * once from the cleaned document.
+ * <p>
+ * If the document has an {@link ImageCache}, converters which embed images in their output can get a variant
+ * whose remote images are replaced with local copies.  The images are fetched once, when the first such variant
+ * is needed, and are kept in the cache until the document {@link #releaseImages() releases} them.  Converters
+ * whose output links to its images must keep the remote ones, since the cache may evict its copies later.
+ * <p>
+ * The documents handed out are shared, so converters must not modify them; a converter which needs to change its
+ * document must {@link Document#clone() clone} it first.
+ */
+public final class ProblemDocument
+{
+    private final String outerHtml;
+    private final String baseUri;
+    private final ImageCache imageCache;
+    private final Variant cleaned = new Variant(null, null);
+    private final Variant rendered = new Variant(Svg.RENDER, null);
+    private final Variant renderedScaled = new Variant(Svg.RENDER_SCALED, null);
+    private final Variant cleanedLocal = new Variant(null, cleaned);
+    private final Variant renderedLocal = new Variant(Svg.RENDER, rendered);
+    private final Variant renderedScaledLocal = new Variant(Svg.RENDER_SCALED, renderedScaled);
+    private Map<String, Path> localImages;
+
+    /**
+     * @param outerHtml HTML of the problem statement
+     * @param baseUri   URI the HTML was pulled from
+     */
+    public ProblemDocument(String outerHtml, String baseUri)
+    {
+        this(outerHtml, baseUri, null);
+    }
+
+    /**
+     * @param outerHtml  HTML of the problem statement
+     * @param baseUri    URI the HTML was pulled from
+     * @param imageCache cache from which remote images are taken, or {@code null} to leave them remote
+     */
+    public ProblemDocument(String outerHtml, String baseUri, ImageCache imageCache)
+    {
+        this.outerHtml = Objects.requireNonNull(outerHtml);
+        this.baseUri = baseUri;
+        this.imageCache = imageCache;
+    }
+
+    public String getOuterHtml()
+    {
+        return outerHtml;
+    }
+
+    public String getBaseUri()
+    {
+        return baseUri;
+    }
+
+    /**
+     * Get the cleaned document, with its SVG drawings handled as given.
+     *
+     * @param svg how SVG drawings should appear in the document
+     * @return shared document, which must not be modified
+     */
+    Document get(Svg svg)
+    {
+        switch (svg) {
+            case RENDER:
+                return rendered.get();
+            case RENDER_SCALED:
+                return renderedScaled.get();
+            default:
+                return cleaned.get();
+        }
+    }
+
+    /**
+     * Get the cleaned document, with its SVG drawings handled as given, and its remote images replaced with
+     * copies from the image cache.  Images which aren't cached and can't be fetched are left remote.
+     *
+     * @param svg how SVG drawings should appear in the document
+     * @return shared document, which must not be modified
+     */
+    Document getWithLocalImages(Svg svg)
+    {
+        switch (svg) {
+            case RENDER:
+                return renderedLocal.get();
+            case RENDER_SCALED:
+                return renderedScaledLocal.get();
+            default:
+                return cleanedLocal.get();
+        }
+    }
+
+    /**
+     * Let the image cache evict the local copies of the document's images.  Invoke once every conversion of the
+     * document is done.
+     */
+    public synchronized void releaseImages()
+    {
+        if (imageCache != null && localImages != null) {
+            imageCache.release(localImages.values());
+            localImages = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @return image URL -> local copy, fetched the first time this is called
+     */
+    private synchronized Map<String, Path> getLocalImages()
+    {
+        if (localImages == null) {
+            if (imageCache == null) {
+                localImages = Collections.emptyMap();
+            } else {
+                ArrayList<String> srcs = new ArrayList<>();
+                for (Element img : cleaned.get().select("img[src]")) {
+                    srcs.add(img.attr("src"));
+                }
+                localImages = imageCache.getAll(srcs);
+            }
+        }
+        return localImages;
+    }
+
+    /**
+     * How SVG drawings should appear in a document.
+     */
+    enum Svg
+    {
+        /**
+         * Left as SVG elements.
+         */
+        KEEP,
+        /**
+         * Rendered to PNG at their size.
+         */
+        RENDER,
+        /**
+         * Rendered to PNG at a multiple of their size, and shown at their size, so they aren't blurry when the
+         * document is zoomed or printed.
+         */
+        RENDER_SCALED
+    }
+
+    /**
+     * One way of preparing the document, done when it's first needed.  Each variant is prepared under its own lock,
+     * so a converter which keeps SVG drawings doesn't wait on another rasterizing them.
+     */
+    private class Variant
+    {
+        /**
+         * How SVG drawings are rendered, or {@code null} if this is the cleaned document itself.
+         */
+        private final Svg render;
+        /**
+         * Variant whose remote images this one replaces with local copies, or {@code null} if this one doesn't.
+         */
+        private final Variant remote;
+        private Document doc;
+
+        private Variant(Svg render, Variant remote)
+        {
+            this.render = render;
+            this.remote = remote;
+        }
+
+        private synchronized Document get()
+        {
+            if (doc == null) {
+                if (remote != null) {
+                    Map<String, Path> local = getLocalImages();
+                    Document d = remote.get();
+                    if (!local.isEmpty()) {
+                        d = d.clone();
+                        for (Element img : d.select("img[src]")) {
+                            Path p = local.get(img.attr("src"));
+                            if (p != null) {
+                                img.attr("src", p.toUri().toString());
+                            }
+                        }
+                    }
+                    doc = d;
+                } else if (render == null) {
+                    doc = ConversionUtils.clean(Jsoup.parse(outerHtml, baseUri == null ? "" : baseUri));
+                } else {
+                    Document d = cleaned.get().clone();
+                    ConversionUtils.renderSvgElements(d, render == Svg.RENDER_SCALED);
+                    doc = d;
+                }
+            }
+            return doc;
+        }
+    }
+}
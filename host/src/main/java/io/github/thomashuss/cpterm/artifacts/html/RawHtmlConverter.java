@@ -16,7 +16,6 @@
 
 package io.github.thomashuss.cpterm.artifacts.html;
 
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,13 +48,16 @@ public class RawHtmlConverter
     }
 
     @Override
-    public void convert(String outerHtml, String baseUri, Path outputFile)
+    public String getCacheKey()
+    {
+        return getClass().getName() + '\0' + renderSvg;
+    }
+
+    @Override
+    public void convert(ProblemDocument problem, Path outputFile)
     throws ConversionException
     {
-        Document d = ConversionUtils.clean(Jsoup.parse(outerHtml, baseUri));
-        if (renderSvg) {
-            ConversionUtils.renderSvgElements(d, false);
-        }
+        Document d = problem.get(renderSvg ? ProblemDocument.Svg.RENDER : ProblemDocument.Svg.KEEP);
         try (PrintWriter pw = new PrintWriter(outputFile.toFile())) {
             pw.write(d.outerHtml());
         } catch (IOException e) {
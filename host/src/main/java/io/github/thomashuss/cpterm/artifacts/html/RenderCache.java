@@ -0,0 +1,236 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps converted documents on disk, keyed by a hash of everything which determines the output: the HTML, the
+ * URI it's resolved against, the converter and its configuration, and the output file name's extension.  A
+ * document which was converted before, even by an earlier run, is materialized by linking or copying instead
+ * of being converted again.
+ * <p>
+ * The cache is bounded in size.  Hits refresh an entry's modification time, and the least recently used
+ * entries are evicted when a new one would put the cache over its limit.
+ */
+public class RenderCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(RenderCache.class);
+    private static final String TEMP_SUFFIX = ".tmp";
+    private final Path dir;
+    private final String salt;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long maxBytes;
+
+    /**
+     * Create a cache in the given directory, which is created if it doesn't exist.
+     *
+     * @param dir      cache directory
+     * @param salt     distinguishes entries written by different versions of the converters
+     * @param maxBytes size limit of the cache
+     */
+    public RenderCache(Path dir, String salt, long maxBytes)
+    {
+        this.dir = dir;
+        this.salt = salt;
+        this.maxBytes = maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Compute the key of a conversion.
+     *
+     * @param converter converter which will do the conversion
+     * @param outerHtml HTML to convert
+     * @param baseUri   URI the HTML was pulled from
+     * @param extension extension of the output file, which may determine its type
+     * @return key
+     */
+    public String key(Converter converter, String outerHtml, String baseUri, String extension)
+    {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for (String s : new String[]{salt, converter.getCacheKey(), extension, baseUri, outerHtml}) {
+            byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+            md.update(new byte[]{(byte) (b.length >>> 24), (byte) (b.length >>> 16), (byte) (b.length >>> 8),
+                    (byte) b.length});
+            md.update(b);
+        }
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Put the cached document with the given key at {@code target}, replacing it.  A document is hard linked
+     * if {@code link} is set and the file system allows it, and copied otherwise; a linked document shares its
+     * contents with the cache, so it should only be linked where it won't be modified.
+     *
+     * @param key    key from {@link #key}
+     * @param target where the document should be
+     * @param link   whether the document may be linked
+     * @return {@code true} if the document was cached and is now at {@code target}
+     */
+    public boolean materialize(String key, Path target, boolean link)
+    {
+        Path entry = dir.resolve(key);
+        if (Files.isRegularFile(entry)) {
+            try {
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                Files.deleteIfExists(target);
+                boolean linked = false;
+                if (link) {
+                    try {
+                        Files.createLink(target, entry);
+                        linked = true;
+                    } catch (IOException | UnsupportedOperationException e) {
+                        logger.debug("Could not link cached document", e);
+                    }
+                }
+                if (!linked) {
+                    Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                logger.debug("Render cache hit ({} hits, {} misses)", hits.incrementAndGet(), misses.get());
+                return true;
+            } catch (IOException e) {
+                logger.warn("Could not materialize cached document", e);
+            }
+        }
+        logger.debug("Render cache miss ({} hits, {} misses)", hits.get(), misses.incrementAndGet());
+        return false;
+    }
+
+    /**
+     * Add a converted document to the cache, evicting old entries if needed.  Errors are logged, since the
+     * document was converted anyway.
+     *
+     * @param key    key from {@link #key}
+     * @param source converted document, which is copied
+     */
+    public void store(String key, Path source)
+    {
+        Path tmp = null;
+        try {
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, key, TEMP_SUFFIX);
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tmp, dir.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // stored by another host in the meantime
+            }
+            evict();
+        } catch (IOException e) {
+            logger.warn("Could not add document to render cache", e);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache fits within its limit.
+     */
+    private void evict()
+    throws IOException
+    {
+        ArrayList<Entry> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                if (!p.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                    entries.add(new Entry(p, a.size(), a.lastModifiedTime().toMillis()));
+                    total += a.size();
+                }
+            }
+        }
+        long max = maxBytes;
+        if (total > max) {
+            entries.sort(Comparator.comparingLong(e -> e.lastUsed));
+            for (Entry e : entries) {
+                try {
+                    Files.delete(e.path);
+                    total -= e.size;
+                    logger.debug("Evicted {}", e.path);
+                } catch (NoSuchFileException ignored) {
+                    total -= e.size;
+                }
+                if (total <= max) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        private final Path path;
+        private final long size;
+        private final long lastUsed;
+
+        private Entry(Path path, long size, long lastUsed)
+        {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a process's output stream on its own thread, so the process never blocks on a full pipe.  Only the
+ * first bytes are kept; the rest are counted and discarded.
+ */
+class StreamDrainer
+        implements Runnable
+{
+    private static final int LIMIT = 64 * 1024;
+    private final InputStream in;
+    private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+    private final Thread thread;
+    private long dropped;
+
+    private StreamDrainer(InputStream in, String name)
+    {
+        this.in = in;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start draining a stream.
+     *
+     * @param in   stream to drain
+     * @param name name of the thread
+     * @return new drainer
+     */
+    static StreamDrainer start(InputStream in, String name)
+    {
+        StreamDrainer d = new StreamDrainer(in, name);
+        d.thread.start();
+        return d;
+    }
+
+    @Override
+    public void run()
+    {
+        byte[] buf = new byte[8192];
+        int n;
+        try {
+            while ((n = in.read(buf)) != -1) {
+                synchronized (this) {
+                    int keep = Math.min(n, LIMIT - kept.size());
+                    kept.write(buf, 0, keep);
+                    dropped += n - keep;
+                }
+            }
+        } catch (IOException ignored) {
+            // stream was closed under us
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Wait for the stream to end, but no longer than the given time, since a child of the process may still
+     * hold it open.
+     *
+     * @param millis longest time to wait
+     * @return what was read so far
+     * @throws InterruptedException if interrupted while waiting
+     */
+    String await(long millis)
+    throws InterruptedException
+    {
+        thread.join(millis);
+        synchronized (this) {
+            String s = new String(kept.toByteArray(), Charset.defaultCharset());
+            return dropped == 0 ? s : s + "\n[" + dropped + " more bytes]";
+        }
+    }
+}
@@ -16,10 +16,9 @@
 
 package io.github.thomashuss.cpterm.artifacts.html;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -29,8 +28,17 @@ import java.nio.file.Path;
 public abstract class TempFileExternalConverter
         extends ExternalConverter
 {
-    protected synchronized final void writeToProcess(String html, Path output)
-    throws ConversionException
+    /**
+     * Write the HTML to a temp file next to the output file.
+     *
+     * @param html   HTML to write
+     * @param output output file
+     * @return temp file, which the caller must delete
+     * @throws ConversionException if the temp file would be the output file
+     * @throws IOException         if the temp file could not be written
+     */
+    protected static Path writeTempFile(PreparedHtml html, Path output)
+    throws ConversionException, IOException
     {
         Path temp = output.getParent().resolve(
                 output.toString().replaceFirst("\\.[^.]+$", ".html"));
@@ -39,25 +47,45 @@ public abstract class TempFileExternalConverter
             logger.error("output is also {}", output);
             throw new ConversionException("Temp file is the output file... is the output file extension `.html'?");
         }
+        try (Writer w = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            html.writeTo(w);
+        }
+        return temp;
+    }
+
+    /**
+     * Delete a temp file made by {@link #writeTempFile(PreparedHtml, Path)}.
+     *
+     * @param temp temp file
+     */
+    protected static void deleteTempFile(Path temp)
+    {
         try {
-            try (PrintWriter pw = new PrintWriter(temp.toFile())) {
-                pw.write(html);
-            }
-            Process p = getProcess(temp, output).start();
-            try (BufferedReader err = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-                 BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-                p.waitFor();
-                logError(p.exitValue(), out, err);
-            }
-        } catch (IOException | InterruptedException e) {
-            logger.error("Communication with process failed", e);
+            Files.delete(temp);
+        } catch (IOException e) {
+            logger.warn("Temp file deletion failed", e);
+        }
+    }
+
+    @Override
+    protected final void runProcess(PreparedHtml html, Path output, ProcessWorker worker)
+    throws ConversionException
+    {
+        Path temp;
+        try {
+            temp = writeTempFile(html, output);
+        } catch (IOException e) {
+            logger.error("Could not write temp file", e);
             throw new ConversionException(e);
-        } finally {
-            try {
-                Files.delete(temp);
-            } catch (IOException e) {
-                logger.warn("Temp file deletion failed", e);
+        }
+        try {
+            ProcessBuilder pb;
+            synchronized (this) {
+                pb = getProcess(temp, output);
             }
+            worker.run(pb, null);
+        } finally {
+            deleteTempFile(temp);
         }
     }
 
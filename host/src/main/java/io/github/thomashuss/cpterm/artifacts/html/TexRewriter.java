@@ -0,0 +1,344 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rewrites symbols in text, such as {@code ≤} and {@code ²}, to TeX math, which Pandoc typesets when the
+ * {@code tex_math_dollars} extension is set on its HTML reader.  The symbols are compiled into an Aho-Corasick
+ * automaton, so text is rewritten in one pass however many symbols there are.  Where symbols overlap, the one
+ * which starts first, and then the longest, is rewritten.
+ * <p>
+ * Symbols next to each other share one math span, and digits right after a span are taken into it, since
+ * Pandoc doesn't end math at a {@code $} followed by a digit.
+ */
+final class TexRewriter
+{
+    private static final Logger logger = LoggerFactory.getLogger(TexRewriter.class);
+    /**
+     * Symbols rewritten by default -> TeX math, without the dollar signs.
+     */
+    private static final Map<String, String> SYMBOLS = new LinkedHashMap<>();
+    /**
+     * Elements whose text is left as it is, since Pandoc shows it literally.
+     */
+    private static final String[] LITERAL = {"pre", "code", "kbd", "samp", "tt", "script", "style", "svg"};
+
+    static {
+        String[][] symbols = {
+                {"≤", "\\leq"}, {"≥", "\\geq"}, {"≠", "\\neq"}, {"≈", "\\approx"}, {"≡", "\\equiv"},
+                {"≪", "\\ll"}, {"≫", "\\gg"}, {"×", "\\times"}, {"·", "\\cdot"}, {"⋅", "\\cdot"}, {"÷", "\\div"},
+                {"±", "\\pm"}, {"∓", "\\mp"}, {"−", "-"}, {"∞", "\\infty"}, {"∑", "\\sum"}, {"∏", "\\prod"},
+                {"√", "\\surd"}, {"∂", "\\partial"}, {"∈", "\\in"}, {"∉", "\\notin"}, {"⊂", "\\subset"},
+                {"⊆", "\\subseteq"}, {"∪", "\\cup"}, {"∩", "\\cap"}, {"∅", "\\emptyset"}, {"∀", "\\forall"},
+                {"∃", "\\exists"}, {"¬", "\\neg"}, {"∧", "\\land"}, {"∨", "\\lor"}, {"⊕", "\\oplus"},
+                {"∣", "\\mid"}, {"→", "\\to"}, {"←", "\\leftarrow"}, {"↔", "\\leftrightarrow"},
+                {"⇒", "\\Rightarrow"}, {"⇔", "\\Leftrightarrow"}, {"⌊", "\\lfloor"}, {"⌋", "\\rfloor"},
+                {"⌈", "\\lceil"}, {"⌉", "\\rceil"}, {"…", "\\ldots"}, {"′", "'"},
+                {"α", "\\alpha"}, {"β", "\\beta"}, {"γ", "\\gamma"}, {"δ", "\\delta"}, {"ε", "\\varepsilon"},
+                {"ζ", "\\zeta"}, {"η", "\\eta"}, {"θ", "\\theta"}, {"ι", "\\iota"}, {"κ", "\\kappa"},
+                {"λ", "\\lambda"}, {"μ", "\\mu"}, {"ν", "\\nu"}, {"ξ", "\\xi"}, {"π", "\\pi"}, {"ρ", "\\rho"},
+                {"σ", "\\sigma"}, {"τ", "\\tau"}, {"υ", "\\upsilon"}, {"φ", "\\varphi"}, {"χ", "\\chi"},
+                {"ψ", "\\psi"}, {"ω", "\\omega"}, {"Γ", "\\Gamma"}, {"Δ", "\\Delta"}, {"Θ", "\\Theta"},
+                {"Λ", "\\Lambda"}, {"Ξ", "\\Xi"}, {"Π", "\\Pi"}, {"Σ", "\\Sigma"}, {"Υ", "\\Upsilon"},
+                {"Φ", "\\Phi"}, {"Ψ", "\\Psi"}, {"Ω", "\\Omega"},
+                {"⁰", "^{0}"}, {"¹", "^{1}"}, {"²", "^{2}"}, {"³", "^{3}"}, {"⁴", "^{4}"}, {"⁵", "^{5}"},
+                {"⁶", "^{6}"}, {"⁷", "^{7}"}, {"⁸", "^{8}"}, {"⁹", "^{9}"}, {"⁺", "^{+}"}, {"⁻", "^{-}"},
+                {"ⁿ", "^{n}"}, {"₀", "_{0}"}, {"₁", "_{1}"}, {"₂", "_{2}"}, {"₃", "_{3}"}, {"₄", "_{4}"},
+                {"₅", "_{5}"}, {"₆", "_{6}"}, {"₇", "_{7}"}, {"₈", "_{8}"}, {"₉", "_{9}"}};
+        for (String[] s : symbols) {
+            SYMBOLS.put(s[0], s[1]);
+        }
+    }
+
+    static final TexRewriter DEFAULT = new TexRewriter(SYMBOLS);
+
+    /**
+     * First characters of the symbols, so that most characters are passed over without a lookup.
+     */
+    private final BitSet first = new BitSet();
+    /**
+     * Characters on each state's transitions, sorted.
+     */
+    private final char[][] keys;
+    /**
+     * States reached by each state's transitions, in the order of {@link #keys}.
+     */
+    private final int[][] targets;
+    /**
+     * State to fall back to when a state has no transition for a character.
+     */
+    private final int[] fail;
+    /**
+     * Length of the text each state has matched.
+     */
+    private final int[] depth;
+    /**
+     * Length of the longest symbol ending at each state, or 0 if none does.
+     */
+    private final int[] outLength;
+    /**
+     * TeX of the longest symbol ending at each state.
+     */
+    private final String[] outTex;
+
+    /**
+     * Compile a table of symbols.
+     *
+     * @param symbols symbol -> TeX math, without the dollar signs
+     */
+    private TexRewriter(Map<String, String> symbols)
+    {
+        ArrayList<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        ArrayList<String> terminal = new ArrayList<>();
+        ArrayList<Integer> depths = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        terminal.add(null);
+        depths.add(0);
+        for (Map.Entry<String, String> e : symbols.entrySet()) {
+            String symbol = e.getKey();
+            first.set(symbol.charAt(0));
+            int state = 0;
+            for (int i = 0; i < symbol.length(); i++) {
+                Integer next = trie.get(state).get(symbol.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    terminal.add(null);
+                    depths.add(i + 1);
+                    trie.get(state).put(symbol.charAt(i), next);
+                }
+                state = next;
+            }
+            terminal.set(state, e.getValue());
+        }
+
+        int n = trie.size();
+        keys = new char[n][];
+        targets = new int[n][];
+        fail = new int[n];
+        depth = new int[n];
+        outLength = new int[n];
+        outTex = new String[n];
+        for (int s = 0; s < n; s++) {
+            TreeMap<Character, Integer> edges = trie.get(s);
+            keys[s] = new char[edges.size()];
+            targets[s] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                keys[s][i] = edge.getKey();
+                targets[s][i++] = edge.getValue();
+            }
+            depth[s] = depths.get(s);
+        }
+
+        // breadth first, so each state's fallback is done before the states under it
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int s = queue.remove();
+            if (terminal.get(s) != null) {
+                outLength[s] = depth[s];
+                outTex[s] = terminal.get(s);
+            } else if (s != 0) {
+                outLength[s] = outLength[fail[s]];
+                outTex[s] = outTex[fail[s]];
+            }
+            for (int i = 0; i < keys[s].length; i++) {
+                int t = targets[s][i];
+                fail[t] = s == 0 ? 0 : step(fail[s], keys[s][i]);
+                queue.add(t);
+            }
+        }
+    }
+
+    /**
+     * Compile the default symbols, changed by a specification of the form {@code symbol=tex symbol=tex ...}.
+     * A symbol given without TeX, as in {@code ≤=}, is left as it is.  Each pair is split at its last {@code =},
+     * so symbols may contain one, as in {@code <==\leq}.
+     *
+     * @param spec whitespace-separated pairs of a symbol and TeX math, without the dollar signs
+     * @return rewriter
+     */
+    static TexRewriter withChanges(String spec)
+    {
+        if (spec.trim().isEmpty()) {
+            return DEFAULT;
+        }
+        HashMap<String, String> changes = new HashMap<>();
+        for (String entry : spec.trim().split("\\s+")) {
+            int eq = entry.lastIndexOf('=');
+            if (eq < 1) {
+                logger.warn("Ignoring TeX symbol without `=': {}", entry);
+            } else {
+                changes.put(entry.substring(0, eq), entry.substring(eq + 1));
+            }
+        }
+        LinkedHashMap<String, String> symbols = new LinkedHashMap<>(SYMBOLS);
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            if (e.getValue().isEmpty()) {
+                symbols.remove(e.getKey());
+            } else {
+                symbols.put(e.getKey(), e.getValue());
+            }
+        }
+        return symbols.isEmpty() ? new TexRewriter(Collections.emptyMap()) : new TexRewriter(symbols);
+    }
+
+    private int step(int state, char c)
+    {
+        if (state == 0 && !first.get(c)) {
+            return 0;
+        }
+        while (true) {
+            int i = Arrays.binarySearch(keys[state], c);
+            if (i >= 0) {
+                return targets[state][i];
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    /**
+     * Rewrite the text under an element in place, except in elements whose text is shown literally.  Children
+     * are visited by index, since {@link Element#childNodes()} allocates a list view and an iterator for every
+     * element, which costs more than scanning text without symbols.
+     *
+     * @param el element to rewrite
+     */
+    void rewrite(Element el)
+    {
+        for (int i = 0, size = el.childNodeSize(); i < size; i++) {
+            Node n = el.childNode(i);
+            if (n instanceof TextNode) {
+                TextNode t = (TextNode) n;
+                String text = t.getWholeText();
+                String tex = rewrite(text);
+                if (tex != text) {
+                    t.text(tex);
+                }
+            } else if (n instanceof Element && !isLiteral(((Element) n).normalName())) {
+                rewrite((Element) n);
+            }
+        }
+    }
+
+    private static boolean isLiteral(String tag)
+    {
+        for (String l : LITERAL) {
+            if (l.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrite the symbols in a string.
+     *
+     * @param s text
+     * @return rewritten text, or {@code s} itself if it has no symbols
+     */
+    String rewrite(String s)
+    {
+        int n = s.length();
+        StringBuilder sb = null;
+        int copied = 0;
+        boolean inMath = false;
+        int state = 0;
+        int bestStart = -1;
+        int bestEnd = 0;
+        String bestTex = null;
+        for (int i = 0; i <= n; i++) {
+            if (i < n) {
+                state = step(state, s.charAt(i));
+                int length = outLength[state];
+                if (length != 0) {
+                    int start = i + 1 - length;
+                    if (bestStart < 0 || start <= bestStart) {
+                        bestStart = start;
+                        bestEnd = i + 1;
+                        bestTex = outTex[state];
+                    }
+                }
+            }
+            // once no longer match can start where the best one does, the best one is final
+            if (bestStart >= 0 && (i == n || i + 1 - depth[state] > bestStart)) {
+                if (sb == null) {
+                    sb = new StringBuilder(n + 16);
+                }
+                if (inMath && bestStart == copied) {
+                    sb.append("{}");
+                } else {
+                    if (inMath) {
+                        copied = closeMath(s, copied, sb);
+                    }
+                    sb.append(s, copied, bestStart).append('$');
+                }
+                sb.append(bestTex);
+                inMath = true;
+                copied = bestEnd;
+                i = bestEnd - 1;
+                state = 0;
+                bestStart = -1;
+            }
+        }
+        if (sb == null) {
+            return s;
+        }
+        if (inMath) {
+            copied = closeMath(s, copied, sb);
+        }
+        return sb.append(s, copied, n).toString();
+    }
+
+    /**
+     * End a math span, taking in the digits right after it.
+     *
+     * @param s      text
+     * @param from   index in {@code s} right after the span
+     * @param sb     rewritten text
+     * @return index in {@code s} after the digits taken in
+     */
+    private static int closeMath(String s, int from, StringBuilder sb)
+    {
+        int i = from;
+        while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+        }
+        sb.append(s, from, i).append('$');
+        return i;
+    }
+}
@@ -0,0 +1,813 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Converts HTML to Markdown, or to plain text if the output file ends in {@code .txt}, without any external
+ * tool.  The cleaned document is walked once and written as it's walked.
+ * <p>
+ * Code blocks are fenced, or indented in plain text.  Lists, tables, and links are written in the usual Markdown
+ * way, and superscripts and subscripts are written as {@code 10^5} and {@code a_i}.  Characters such as
+ * {@code ≤} are written as they are.  SVG drawings are kept as inline HTML in Markdown, and left out of plain
+ * text.
+ */
+public class TextConverter
+        implements Converter
+{
+    private static final Logger logger = LoggerFactory.getLogger(TextConverter.class);
+    private static final Pattern INTER_TAG_SPACE = Pattern.compile(">\\s+<");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    TextConverter()
+    {
+    }
+
+    /**
+     * Write a document as Markdown or plain text.
+     *
+     * @param d        document to write
+     * @param markdown {@code true} for Markdown, {@code false} for plain text
+     * @return text of the document
+     */
+    static String write(Document d, boolean markdown)
+    {
+        Walker w = new Walker(markdown, false);
+        w.children(d.body());
+        return w.finish();
+    }
+
+    @Override
+    public void convert(ProblemDocument problem, Path outputFile)
+    throws ConversionException
+    {
+        boolean markdown = !outputFile.getFileName().toString().endsWith(".txt");
+        String text = write(problem.get(ProblemDocument.Svg.KEEP), markdown);
+        try {
+            Files.write(outputFile, text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.error("Unable to write to file", e);
+            throw new ConversionException(e);
+        }
+    }
+
+    /**
+     * Walks a document, writing it as it goes.  Blocks ask for line breaks before and after them, and the breaks
+     * are written only once there's more text, so a run of blocks is separated by the most any of them asked
+     * for.  Whitespace in text is collapsed the way a browser would.
+     */
+    private static class Walker
+    {
+        private final StringBuilder out = new StringBuilder();
+        private final boolean markdown;
+        /**
+         * Whether this walker writes a table cell, which stays on one line apart from the lines of code blocks:
+         * joined by {@code <br>} in Markdown, or written on lines of their own in plain text.
+         */
+        private final boolean cell;
+        /**
+         * Written at the start of each line, for text inside lists and quotes.
+         */
+        private String indent = "";
+        /**
+         * Line breaks to write before the next text.
+         */
+        private int breaks;
+        /**
+         * Whether the next line break ends a line early, within a paragraph.
+         */
+        private boolean hard;
+        /**
+         * Whether a space should be written before the next text.
+         */
+        private boolean space;
+        /**
+         * Whether nothing was written on the current line yet, apart from its indent or a list marker.
+         */
+        private boolean lineStart = true;
+        /**
+         * Whether the next text directly follows a list marker or an opening delimiter, so that breaks and spaces
+         * before it are dropped.
+         */
+        private boolean glued;
+        /**
+         * Depth of inline code; text in code isn't escaped or formatted.
+         */
+        private int code;
+        /**
+         * Depth of lists.
+         */
+        private int lists;
+
+        private Walker(boolean markdown, boolean cell)
+        {
+            this.markdown = markdown;
+            this.cell = cell;
+        }
+
+        private static String repeat(char c, int n)
+        {
+            StringBuilder sb = new StringBuilder(n);
+            for (int i = 0; i < n; i++) {
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @param s text
+         * @param c character
+         * @return length of the longest run of {@code c} in {@code s}
+         */
+        private static int longestRun(String s, char c)
+        {
+            int max = 0;
+            int run = 0;
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) == c) {
+                    max = Math.max(max, ++run);
+                } else {
+                    run = 0;
+                }
+            }
+            return max;
+        }
+
+        private static String rtrim(String s)
+        {
+            int end = s.length();
+            while (end > 0 && s.charAt(end - 1) == ' ') {
+                end--;
+            }
+            return s.substring(0, end);
+        }
+
+        /**
+         * Ask for line breaks before the next text.
+         *
+         * @param n 1 to start a new line, or 2 to leave a blank line
+         */
+        private void block(int n)
+        {
+            if (!glued && !cell) {
+                breaks = Math.max(breaks, n);
+                hard &= breaks == 1;
+            }
+            space = false;
+        }
+
+        /**
+         * Write the pending breaks and space, then {@code s} as it is.
+         *
+         * @param s text without line breaks
+         */
+        private void emit(CharSequence s)
+        {
+            if (out.length() == 0) {
+                out.append(indent);
+                lineStart = true;
+            } else if (breaks > 0) {
+                if (cell) {
+                    out.append(markdown ? "<br>" : "\n");
+                } else {
+                    if (hard && breaks == 1) {
+                        out.append('\\');
+                    }
+                    for (int i = 1; i < breaks; i++) {
+                        out.append('\n').append(rtrim(indent));
+                    }
+                    out.append('\n').append(indent);
+                }
+                lineStart = true;
+            }
+            breaks = 0;
+            hard = false;
+            if (space && !lineStart && !glued) {
+                out.append(' ');
+            }
+            space = false;
+            glued = false;
+            lineStart = false;
+            out.append(s);
+        }
+
+        /**
+         * Write a delimiter which closes formatting right after the text it formats, leaving any space after the
+         * text until after the delimiter.
+         *
+         * @param s delimiter
+         */
+        private void close(String s)
+        {
+            glued = false;
+            out.append(s);
+        }
+
+        /**
+         * Write an opening delimiter, which the next text follows directly.
+         *
+         * @param s delimiter
+         */
+        private void open(String s)
+        {
+            emit(s);
+            glued = true;
+        }
+
+        /**
+         * Write text, collapsing whitespace and escaping it for Markdown.
+         *
+         * @param text text as it appears in HTML
+         */
+        private void text(String text)
+        {
+            int n = text.length();
+            StringBuilder word = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                char c = text.charAt(i);
+                if (c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f') {
+                    if (word.length() != 0) {
+                        emit(word);
+                        word.setLength(0);
+                    }
+                    space = true;
+                } else {
+                    if (c == '\u00a0') {
+                        word.append(' ');
+                    } else if (markdown && code == 0) {
+                        escape(c, i + 1 < n ? text.charAt(i + 1) : ' ', word);
+                    } else {
+                        word.append(c);
+                    }
+                }
+            }
+            if (word.length() != 0) {
+                emit(word);
+            }
+        }
+
+        /**
+         * Add a character of Markdown text to a word, escaping it if it could be read as syntax.
+         *
+         * @param c    character
+         * @param next character after {@code c}
+         * @param word word being built
+         */
+        private void escape(char c, char next, StringBuilder word)
+        {
+            boolean first = word.length() == 0 && (lineStart || breaks > 0);
+            switch (c) {
+                case '\\':
+                case '`':
+                case '*':
+                case '_':
+                case '[':
+                case ']':
+                    word.append('\\');
+                    break;
+                case '<':
+                    if (Character.isLetter(next) || next == '/' || next == '!' || next == '?') {
+                        word.append('\\');
+                    }
+                    break;
+                case '|':
+                    if (cell) {
+                        word.append('\\');
+                    }
+                    break;
+                case '>':
+                    if (first) {
+                        word.append('\\');
+                    }
+                    break;
+                case '#':
+                case '-':
+                case '+':
+                    // only a list marker or heading if followed by a space, or a rule if repeated
+                    if (first && (Character.isWhitespace(next) || next == c)) {
+                        word.append('\\');
+                    }
+                    break;
+                default:
+            }
+            word.append(c);
+        }
+
+        private void children(Element el)
+        {
+            for (Node n : el.childNodes()) {
+                if (n instanceof TextNode) {
+                    text(((TextNode) n).getWholeText());
+                } else if (n instanceof Element) {
+                    element((Element) n);
+                }
+            }
+        }
+
+        private void element(Element el)
+        {
+            switch (el.normalName()) {
+                case "p":
+                case "dl":
+                case "address":
+                    block(2);
+                    children(el);
+                    block(2);
+                    break;
+                case "h1":
+                case "h2":
+                case "h3":
+                case "h4":
+                case "h5":
+                case "h6":
+                    heading(el);
+                    break;
+                case "pre":
+                    pre(el);
+                    break;
+                case "ul":
+                case "ol":
+                    list(el);
+                    break;
+                case "table":
+                    table(el);
+                    break;
+                case "blockquote":
+                    quote(el);
+                    break;
+                case "hr":
+                    block(2);
+                    emit(markdown ? "---" : repeat('-', 40));
+                    block(2);
+                    break;
+                case "br":
+                    lineBreak();
+                    break;
+                case "code":
+                case "kbd":
+                case "samp":
+                case "tt":
+                    inlineCode(el);
+                    break;
+                case "b":
+                case "strong":
+                    format(el, "**");
+                    break;
+                case "i":
+                case "em":
+                case "var":
+                case "cite":
+                    format(el, "*");
+                    break;
+                case "s":
+                case "del":
+                case "strike":
+                    format(el, "~~");
+                    break;
+                case "sup":
+                    script(el, '^');
+                    break;
+                case "sub":
+                    script(el, '_');
+                    break;
+                case "a":
+                    link(el);
+                    break;
+                case "img":
+                    image(el);
+                    break;
+                case "svg":
+                    svg(el);
+                    break;
+                case "li":
+                    // outside a list
+                    block(1);
+                    children(el);
+                    block(1);
+                    break;
+                case "div":
+                case "section":
+                case "article":
+                case "header":
+                case "footer":
+                case "main":
+                case "figure":
+                case "figcaption":
+                case "caption":
+                case "dt":
+                case "dd":
+                case "details":
+                case "summary":
+                case "center":
+                    block(1);
+                    children(el);
+                    block(1);
+                    break;
+                default:
+                    children(el);
+            }
+        }
+
+        private void heading(Element el)
+        {
+            block(2);
+            if (markdown && !cell) {
+                open(repeat('#', el.normalName().charAt(1) - '0') + ' ');
+            }
+            children(el);
+            glued = false;
+            block(2);
+        }
+
+        private void lineBreak()
+        {
+            if (cell) {
+                space = true;
+            } else {
+                if (!lineStart || breaks > 0) {
+                    breaks = Math.min(2, breaks + 1);
+                    hard = markdown && breaks == 1;
+                }
+                space = false;
+            }
+        }
+
+        private void pre(Element el)
+        {
+            String body = el.wholeText();
+            if (body.endsWith("\n")) {
+                body = body.substring(0, body.length() - 1);
+            }
+            if (body.startsWith("\n")) {
+                body = body.substring(1);
+            }
+            String[] lines = body.split("\r?\n", -1);
+            if (cell) {
+                cellPre(lines);
+                return;
+            }
+            block(2);
+            if (markdown) {
+                String fence = repeat('`', Math.max(3, longestRun(body, '`') + 1));
+                emit(fence);
+                for (String line : lines) {
+                    breaks = 1;
+                    emitRaw(line);
+                }
+                breaks = 1;
+                emit(fence);
+            } else {
+                for (String line : lines) {
+                    emitRaw(line.isEmpty() ? "" : "    " + line);
+                    breaks = 1;
+                }
+            }
+            block(2);
+        }
+
+        /**
+         * Write the lines of a code block in a table cell, each on a line of its own within the cell, as inline
+         * code in Markdown.  Text after the block starts on a new line too.
+         *
+         * @param lines lines of the code block
+         */
+        private void cellPre(String[] lines)
+        {
+            for (String line : lines) {
+                breaks = 1;
+                space = false;
+                if (!markdown) {
+                    emit(rtrim(line));
+                } else {
+                    String text = WHITESPACE.matcher(line).replaceAll(" ").trim();
+                    if (text.isEmpty()) {
+                        emit(text);
+                    } else {
+                        String fence = repeat('`', longestRun(text, '`') + 1);
+                        String pad = text.startsWith("`") || text.endsWith("`") ? " " : "";
+                        // GFM splits cells on pipes even in code
+                        emit(fence + pad + text.replace("|", "\\|") + pad + fence);
+                    }
+                }
+            }
+            breaks = 1;
+        }
+
+        /**
+         * Write a line as it is, even if it's blank.
+         *
+         * @param line line without line breaks
+         */
+        private void emitRaw(String line)
+        {
+            if (line.isEmpty()) {
+                // keep blank lines, which emit would fold into the next break
+                if (out.length() != 0) {
+                    for (int i = 0; i < breaks; i++) {
+                        out.append('\n').append(i + 1 < breaks ? rtrim(indent) : indent);
+                    }
+                }
+                breaks = 0;
+                hard = false;
+                lineStart = true;
+                space = false;
+            } else {
+                space = false;
+                emit(line);
+            }
+        }
+
+        private void list(Element el)
+        {
+            boolean nested = lists > 0;
+            block(nested ? 1 : 2);
+            boolean ordered = el.normalName().equals("ol");
+            int n = 1;
+            if (ordered) {
+                try {
+                    n = Integer.parseInt(el.attr("start").trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            String outer = indent;
+            lists++;
+            for (Element li : el.children()) {
+                if (!li.normalName().equals("li")) {
+                    element(li);
+                    continue;
+                }
+                String marker = ordered ? (n++) + ". " : "- ";
+                block(1);
+                open(marker);
+                lineStart = true;
+                indent = outer + repeat(' ', marker.length());
+                children(li);
+                glued = false;
+                indent = outer;
+                block(1);
+            }
+            lists--;
+            block(nested ? 1 : 2);
+        }
+
+        private void quote(Element el)
+        {
+            block(2);
+            String outer = indent;
+            // the blank line before the quote is outside it
+            if (out.length() != 0) {
+                for (; breaks > 1; breaks--) {
+                    out.append('\n').append(rtrim(outer));
+                }
+            }
+            indent = outer + "> ";
+            breaks = Math.max(breaks, 1);
+            glued = true;
+            children(el);
+            indent = outer;
+            block(2);
+        }
+
+        private void inlineCode(Element el)
+        {
+            if (!markdown || code > 0 || !el.hasText()) {
+                code++;
+                children(el);
+                code--;
+                return;
+            }
+            String fence = repeat('`', longestRun(el.text(), '`') + 1);
+            String pad = el.text().startsWith("`") || el.text().endsWith("`") ? " " : "";
+            code++;
+            open(fence + pad);
+            children(el);
+            close(pad + fence);
+            code--;
+        }
+
+
+        private void format(Element el, String delimiter)
+        {
+            if (!markdown || code > 0 || !el.hasText()) {
+                children(el);
+                return;
+            }
+            open(delimiter);
+            children(el);
+            close(delimiter);
+        }
+
+        /**
+         * Write a superscript or subscript, such as {@code 10^5} or {@code a_i}.  Anything but a single word is
+         * put in parentheses.
+         *
+         * @param el   superscript or subscript
+         * @param mark character which introduces it
+         */
+        private void script(Element el, char mark)
+        {
+            String text = el.text();
+            if (text.isEmpty()) {
+                return;
+            }
+            boolean word = true;
+            for (int i = 0; i < text.length() && word; i++) {
+                word = Character.isLetterOrDigit(text.charAt(i));
+            }
+            space = false;
+            String m = markdown && code == 0 && mark == '_' ? "\\_" : String.valueOf(mark);
+            if (word) {
+                open(m);
+                children(el);
+                glued = false;
+            } else {
+                open(m + '(');
+                children(el);
+                close(")");
+            }
+        }
+
+        private void link(Element el)
+        {
+            String href = el.absUrl("href");
+            if (!markdown || code > 0 || href.isEmpty() || !el.hasText()) {
+                children(el);
+                return;
+            }
+            open("[");
+            children(el);
+            close("](" + href.replace(")", "%29").replace(" ", "%20") + ')');
+        }
+
+        private void image(Element el)
+        {
+            String alt = WHITESPACE.matcher(el.attr("alt")).replaceAll(" ").trim();
+            String src = el.absUrl("src");
+            if (src.isEmpty()) {
+                src = el.attr("src");
+            }
+            if (markdown && !src.isEmpty()) {
+                emit("![" + alt.replace("]", "\\]") + "](" + src.replace(")", "%29").replace(" ", "%20") + ')');
+            } else {
+                emit(alt.isEmpty() ? "[image]" : "[image: " + alt + ']');
+            }
+        }
+
+        private void svg(Element el)
+        {
+            if (markdown) {
+                emit(INTER_TAG_SPACE.matcher(el.outerHtml()).replaceAll("><").replace('\n', ' ').trim());
+            } else {
+                emit("[drawing]");
+            }
+        }
+
+        private void table(Element table)
+        {
+            List<List<String>> rows = new ArrayList<>();
+            int columns = 0;
+            for (Element tr : table.select("tr")) {
+                if (tr.closest("table") != table) {
+                    continue;
+                }
+                List<String> row = new ArrayList<>();
+                for (Element td : tr.children()) {
+                    if (td.normalName().equals("td") || td.normalName().equals("th")) {
+                        Walker w = new Walker(markdown, true);
+                        w.children(td);
+                        row.add(w.finish());
+                    }
+                }
+                if (!row.isEmpty()) {
+                    rows.add(row);
+                    columns = Math.max(columns, row.size());
+                }
+            }
+            if (rows.isEmpty()) {
+                return;
+            }
+            int[] widths = new int[columns];
+            for (List<String> row : rows) {
+                for (List<String> line : rowLines(row)) {
+                    for (int i = 0; i < line.size(); i++) {
+                        widths[i] = Math.max(widths[i], line.get(i).codePointCount(0, line.get(i).length()));
+                    }
+                }
+            }
+            if (markdown) {
+                for (int i = 0; i < columns; i++) {
+                    widths[i] = Math.max(widths[i], 3);
+                }
+            }
+
+            block(2);
+            boolean header = true;
+            for (List<String> row : rows) {
+                for (List<String> line : rowLines(row)) {
+                    breaks = Math.max(breaks, 1);
+                    emit(tableRow(line, widths));
+                }
+                if (header) {
+                    header = false;
+                    ArrayList<String> rule = new ArrayList<>(columns);
+                    for (int w : widths) {
+                        rule.add(repeat('-', w));
+                    }
+                    breaks = 1;
+                    emit(tableRow(rule, widths));
+                }
+            }
+            block(2);
+        }
+
+        /**
+         * @param row cells of a row, which span several lines if they hold code blocks in plain text
+         * @return cells of each line of the row, blank where a cell has fewer lines
+         */
+        private static List<List<String>> rowLines(List<String> row)
+        {
+            List<String[]> cells = new ArrayList<>(row.size());
+            int height = 1;
+            for (String cell : row) {
+                String[] lines = cell.split("\n", -1);
+                cells.add(lines);
+                height = Math.max(height, lines.length);
+            }
+            List<List<String>> rowLines = new ArrayList<>(height);
+            for (int i = 0; i < height; i++) {
+                List<String> line = new ArrayList<>(cells.size());
+                for (String[] lines : cells) {
+                    line.add(i < lines.length ? lines[i] : "");
+                }
+                rowLines.add(line);
+            }
+            return rowLines;
+        }
+
+        private String tableRow(List<String> row, int[] widths)
+        {
+            StringBuilder sb = new StringBuilder();
+            if (markdown) {
+                sb.append("| ");
+            }
+            for (int i = 0; i < widths.length; i++) {
+                String cell = i < row.size() ? row.get(i) : "";
+                if (i != 0) {
+                    sb.append(markdown ? " | " : "  ");
+                }
+                sb.append(cell);
+                if (markdown || i + 1 < widths.length) {
+                    sb.append(repeat(' ', widths[i] - cell.codePointCount(0, cell.length())));
+                }
+            }
+            if (markdown) {
+                sb.append(" |");
+            }
+            return rtrim(sb.toString());
+        }
+
+        /**
+         * @return everything written, ending in a line break unless nothing was written
+         */
+        private String finish()
+        {
+            int end = out.length();
+            while (end > 0 && Character.isWhitespace(out.charAt(end - 1))) {
+                end--;
+            }
+            out.setLength(end);
+            if (!cell && end != 0) {
+                out.append('\n');
+            }
+            return out.toString();
+        }
+    }
+}
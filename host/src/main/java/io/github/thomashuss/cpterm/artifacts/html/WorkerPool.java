@@ -0,0 +1,574 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs jobs on a bounded set of workers.  At most {@code size} workers exist at once; callers beyond that wait
+ * in a queue of bounded depth.  A job which doesn't finish within the timeout, counted from when it was
+ * submitted, has its worker closed under it.  Reusable workers are kept for later jobs until they've done
+ * {@code maxJobs} jobs, failed one, or been idle for the idle timeout; other workers are closed after one job.
+ * A job which failed because its worker was lost is tried once more on a new worker.
+ *
+ * @param <W> worker type
+ */
+public class WorkerPool<W extends WorkerPool.Worker>
+{
+    private static final Logger logger = LoggerFactory.getLogger(WorkerPool.class);
+    /**
+     * Number of recent job latencies kept for percentiles.
+     */
+    private static final int LATENCY_SAMPLES = 256;
+    private final String name;
+    private final Factory<W> factory;
+    /**
+     * Idle workers, most recently used first.
+     */
+    private final ArrayDeque<Idle<W>> idle = new ArrayDeque<>();
+    /**
+     * Workers which have been created and not yet closed.
+     */
+    private final Map<W, Entry> entries = new IdentityHashMap<>();
+    /**
+     * Slots of workers which exist or are being created.
+     */
+    private final BitSet slots = new BitSet();
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int size = 1;
+    private int queueDepth = 8;
+    private int maxJobs = 50;
+    private long timeout;
+    private long idleTimeout;
+    /**
+     * Incremented by {@link #reset()}; workers from an older generation are closed when they're released.
+     */
+    private int generation;
+    /**
+     * Workers which exist or are being created.
+     */
+    private int live;
+    private int busy;
+    private int waiting;
+    private long completed;
+    private long failed;
+    private long samples;
+    private ScheduledFuture<?> sweep;
+
+    /**
+     * @param name    name of the pool, for logging
+     * @param factory creates workers
+     */
+    WorkerPool(String name, Factory<W> factory)
+    {
+        this.name = name;
+        this.factory = factory;
+    }
+
+    /**
+     * Configure the pool.  Workers beyond the new size are closed once they're idle.
+     *
+     * @param size        maximum number of workers
+     * @param queueDepth  maximum number of jobs waiting for a worker
+     * @param maxJobs     number of jobs after which a reusable worker is replaced
+     * @param timeout     milliseconds a job may take, including waiting for a worker, or 0 for no limit
+     * @param idleTimeout milliseconds a reusable worker may be idle before it's closed, or 0 for no limit
+     */
+    public void configure(int size, int queueDepth, int maxJobs, long timeout, long idleTimeout)
+    {
+        List<W> excess = new ArrayList<>(0);
+        synchronized (this) {
+            this.size = Math.max(1, size);
+            this.queueDepth = Math.max(0, queueDepth);
+            this.maxJobs = Math.max(1, maxJobs);
+            this.timeout = Math.max(0, timeout);
+            if (this.idleTimeout != idleTimeout) {
+                this.idleTimeout = Math.max(0, idleTimeout);
+                if (sweep != null) {
+                    sweep.cancel(false);
+                    sweep = null;
+                }
+                scheduleSweep();
+            }
+            while (live > this.size && !idle.isEmpty()) {
+                excess.add(retire(idle.removeLast().worker));
+            }
+            notifyAll();
+        }
+        closeAll(excess);
+    }
+
+    /**
+     * Close the idle workers, and have the busy ones closed once they finish, so that new jobs run on new
+     * workers.
+     */
+    public void reset()
+    {
+        List<W> closing = new ArrayList<>(0);
+        synchronized (this) {
+            generation++;
+            while (!idle.isEmpty()) {
+                closing.add(retire(idle.removeFirst().worker));
+            }
+        }
+        closeAll(closing);
+    }
+
+    /**
+     * Create a worker ahead of the first job, unless there already is one.  A worker which isn't reusable is
+     * closed right away.
+     *
+     * @throws IOException if the worker could not be created
+     */
+    public void warm()
+    throws IOException
+    {
+        synchronized (this) {
+            if (live > 0) {
+                return;
+            }
+        }
+        release(acquire(0, 0), null, true);
+    }
+
+    /**
+     * Run a job on a worker, waiting for one if they're all busy.
+     *
+     * @param job job to run
+     * @param <E> exception thrown by the job
+     * @throws IOException if the queue is full, no worker could be created, or the job timed out
+     * @throws E           if the job failed
+     */
+    public <E extends Exception> void run(Job<W, E> job)
+    throws IOException, E
+    {
+        long start = System.nanoTime();
+        long timeout;
+        synchronized (this) {
+            timeout = this.timeout;
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (int attempt = 0; ; attempt++) {
+            W w = acquire(deadline, timeout);
+            AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> watchdog = timeout > 0 ? Timer.scheduler.schedule(() -> {
+                timedOut.set(true);
+                w.close();
+            }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS) : null;
+            try {
+                job.run(w);
+            } catch (Exception e) {
+                if (watchdog != null) {
+                    watchdog.cancel(false);
+                }
+                boolean lost = !timedOut.get() && w.isLost();
+                release(w, false, false);
+                if (timedOut.get()) {
+                    throw new IOException(name + " did not finish within " + timeout + " ms", e);
+                }
+                if (lost && attempt == 0) {
+                    logger.warn("{} worker was lost, trying again", name, e);
+                    continue;
+                }
+                throw e;
+            }
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+            release(w, true, !timedOut.get());
+            record(System.nanoTime() - start);
+            return;
+        }
+    }
+
+    /**
+     * @return current state of the pool
+     */
+    public synchronized Stats getStats()
+    {
+        int n = (int) Math.min(samples, LATENCY_SAMPLES);
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        return new Stats(name, live, busy, idle.size(), waiting, completed, failed,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99));
+    }
+
+    private static long percentile(long[] sorted, int p)
+    {
+        return sorted.length == 0 ? 0 : sorted[Math.max(0, (sorted.length * p + 99) / 100 - 1)];
+    }
+
+    /**
+     * Take an idle worker, or create one if there's room, or wait for one.
+     *
+     * @param deadline {@link System#nanoTime()} by which to have a worker
+     * @param timeout  timeout the deadline was derived from, or 0 if there's no deadline
+     * @return worker, counted as busy
+     * @throws IOException if the queue is full, there was no worker by the deadline, or creation failed
+     */
+    private W acquire(long deadline, long timeout)
+    throws IOException
+    {
+        int slot;
+        int gen;
+        synchronized (this) {
+            if (idle.isEmpty() && live >= size && waiting >= queueDepth) {
+                throw new IOException(name + " has " + waiting + " conversions waiting already");
+            }
+            waiting++;
+            try {
+                while (true) {
+                    Idle<W> i = idle.pollFirst();
+                    if (i != null) {
+                        busy++;
+                        return i.worker;
+                    }
+                    if (live < size) {
+                        slot = slots.nextClearBit(0);
+                        slots.set(slot);
+                        live++;
+                        busy++;
+                        gen = generation;
+                        break;
+                    }
+                    long wait = 0;
+                    if (timeout > 0) {
+                        wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (wait <= 0) {
+                            throw new IOException(name + " had no worker free within " + timeout + " ms");
+                        }
+                    }
+                    wait(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + name);
+            } finally {
+                waiting--;
+            }
+        }
+        W w;
+        try {
+            w = factory.create(slot);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                slots.clear(slot);
+                live--;
+                busy--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            entries.put(w, new Entry(slot, gen));
+        }
+        return w;
+    }
+
+    /**
+     * Return a worker after a job, keeping it if it can take more.
+     *
+     * @param w         worker
+     * @param succeeded whether the job succeeded, or {@code null} if there was no job
+     * @param healthy   whether the worker may be kept
+     */
+    private void release(W w, Boolean succeeded, boolean healthy)
+    {
+        boolean close;
+        synchronized (this) {
+            busy--;
+            Entry e = entries.get(w);
+            if (succeeded != null) {
+                if (succeeded) {
+                    completed++;
+                } else {
+                    failed++;
+                }
+                e.jobs++;
+            }
+            close = !healthy || !w.isReusable() || e.jobs >= maxJobs || e.generation != generation || live > size;
+            if (close) {
+                retire(w);
+            } else {
+                idle.addFirst(new Idle<>(w, System.nanoTime()));
+                scheduleSweep();
+            }
+            notifyAll();
+        }
+        if (close) {
+            w.close();
+        }
+    }
+
+    /**
+     * Forget a worker, which the caller must close.  Must hold the lock.
+     *
+     * @param w worker
+     * @return {@code w}
+     */
+    private W retire(W w)
+    {
+        slots.clear(entries.remove(w).slot);
+        live--;
+        return w;
+    }
+
+    private static <W extends Worker> void closeAll(List<W> workers)
+    {
+        for (W w : workers) {
+            w.close();
+        }
+    }
+
+    private synchronized void record(long nanos)
+    {
+        latencies[(int) (samples++ % LATENCY_SAMPLES)] = TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Schedule closing the workers which will have been idle for too long.  Must hold the lock.
+     */
+    private void scheduleSweep()
+    {
+        if (sweep == null && idleTimeout > 0 && !idle.isEmpty()) {
+            long delay = idle.peekLast().since + TimeUnit.MILLISECONDS.toNanos(idleTimeout) - System.nanoTime();
+            sweep = Timer.scheduler.schedule(this::sweep, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void sweep()
+    {
+        List<W> expired = new ArrayList<>(0);
+        synchronized (this) {
+            sweep = null;
+            long oldest = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+            for (Iterator<Idle<W>> it = idle.descendingIterator(); it.hasNext(); ) {
+                Idle<W> i = it.next();
+                if (i.since - oldest > 0) {
+                    break;
+                }
+                it.remove();
+                expired.add(retire(i.worker));
+            }
+            scheduleSweep();
+        }
+        if (!expired.isEmpty()) {
+            logger.info("Closing {} idle {} worker(s)", expired.size(), name);
+            closeAll(expired);
+        }
+    }
+
+    /**
+     * Something which runs jobs.
+     */
+    public interface Worker
+    {
+        /**
+         * @return whether the worker can take another job after finishing one
+         */
+        default boolean isReusable()
+        {
+            return true;
+        }
+
+        /**
+         * @return whether the worker died, so that a job it failed might succeed on a new worker
+         */
+        default boolean isLost()
+        {
+            return false;
+        }
+
+        /**
+         * Stop the worker.  May be called from any thread, including while the worker is running a job, which
+         * should then fail promptly.
+         */
+        void close();
+    }
+
+    /**
+     * Creates workers.
+     *
+     * @param <W> worker type
+     */
+    public interface Factory<W>
+    {
+        /**
+         * @param slot index of the worker, less than the pool size and unique among the pool's workers, for
+         *             keeping the workers' resources apart
+         * @return new worker
+         * @throws IOException if the worker could not be started
+         */
+        W create(int slot)
+        throws IOException;
+    }
+
+    /**
+     * Something to do with a worker.
+     *
+     * @param <W> worker type
+     * @param <E> exception thrown when the job fails
+     */
+    public interface Job<W, E extends Exception>
+    {
+        void run(W worker)
+        throws E;
+    }
+
+    /**
+     * Snapshot of a pool's state.  Latencies are in milliseconds, from submitting a job to its completion, over
+     * recent jobs which succeeded.
+     */
+    public static final class Stats
+    {
+        private final String name;
+        private final int workers;
+        private final int busy;
+        private final int idle;
+        private final int queued;
+        private final long completed;
+        private final long failed;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+
+        private Stats(String name, int workers, int busy, int idle, int queued, long completed, long failed,
+                      long p50, long p90, long p99)
+        {
+            this.name = name;
+            this.workers = workers;
+            this.busy = busy;
+            this.idle = idle;
+            this.queued = queued;
+            this.completed = completed;
+            this.failed = failed;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        public int getWorkers()
+        {
+            return workers;
+        }
+
+        public int getBusy()
+        {
+            return busy;
+        }
+
+        public int getIdle()
+        {
+            return idle;
+        }
+
+        public int getQueued()
+        {
+            return queued;
+        }
+
+        public long getCompleted()
+        {
+            return completed;
+        }
+
+        public long getFailed()
+        {
+            return failed;
+        }
+
+        public long getP50()
+        {
+            return p50;
+        }
+
+        public long getP90()
+        {
+            return p90;
+        }
+
+        public long getP99()
+        {
+            return p99;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": " + workers + " workers (" + busy + " busy, " + idle + " idle), " + queued
+                    + " queued, " + completed + " done, " + failed + " failed, latency p50 " + p50 + " ms, p90 "
+                    + p90 + " ms, p99 " + p99 + " ms";
+        }
+    }
+
+    private static final class Entry
+    {
+        private final int slot;
+        private final int generation;
+        private int jobs;
+
+        private Entry(int slot, int generation)
+        {
+            this.slot = slot;
+            this.generation = generation;
+        }
+    }
+
+    private static final class Idle<W>
+    {
+        private final W worker;
+        private final long since;
+
+        private Idle(W worker, long since)
+        {
+            this.worker = worker;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Runs watchdogs and idle sweeps for every pool.
+     */
+    private static final class Timer
+    {
+        private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "worker-pool-timer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        static {
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.ext;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joins chunks received from the extension back into whole messages.  The chunk format is described in
+ * {@link ChunkedTransfer}.  A message whose last chunk never arrives is dropped once it's too old, or once too
+ * many other messages are being received.  Not thread safe.
+ */
+class ChunkAssembler
+{
+    private static final Logger logger = LoggerFactory.getLogger(ChunkAssembler.class);
+    private static final byte[] PREFIX = "{\"chunk\":".getBytes(StandardCharsets.US_ASCII);
+    private static final JsonFactory factory = new JsonFactory();
+    /**
+     * Most messages which may be partially received at once.
+     */
+    private static final int MAX_PARTIALS = 16;
+    /**
+     * Nanoseconds after its first chunk after which a partially received message is dropped.
+     */
+    private static final long MAX_AGE = TimeUnit.MINUTES.toNanos(1);
+    /**
+     * Chunk ID -> message received so far, oldest first.
+     */
+    private final Map<Integer, Partial> partials = new LinkedHashMap<>();
+
+    /**
+     * Whether a frame holds a chunk rather than a whole message.
+     *
+     * @param buf    buffer containing the frame
+     * @param offset position of the frame in {@code buf}
+     * @param length length of the frame
+     * @return {@code true} if the frame is a chunk
+     */
+    static boolean isChunk(byte[] buf, int offset, int length)
+    {
+        if (length < PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < PREFIX.length; i++) {
+            if (buf[offset + i] != PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a chunk to the message it belongs to.
+     *
+     * @param buf    buffer containing the chunk
+     * @param offset position of the chunk in {@code buf}
+     * @param length length of the chunk
+     * @return the whole message as UTF-8 if this was its last chunk, {@code null} otherwise
+     * @throws IOException if the chunk is malformed or out of sequence
+     */
+    byte[] add(byte[] buf, int offset, int length)
+    throws IOException
+    {
+        int id = -1;
+        int seq = -1;
+        boolean last = false;
+        String data = null;
+        try (JsonParser p = factory.createParser(buf, offset, length)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Chunk is not an object");
+            }
+            String field;
+            while ((field = p.nextFieldName()) != null) {
+                if ("chunk".equals(field) && p.nextToken() == JsonToken.START_OBJECT) {
+                    while ((field = p.nextFieldName()) != null) {
+                        p.nextToken();
+                        if ("id".equals(field)) {
+                            id = p.getIntValue();
+                        } else if ("seq".equals(field)) {
+                            seq = p.getIntValue();
+                        } else if ("last".equals(field)) {
+                            last = p.getBooleanValue();
+                        } else {
+                            p.skipChildren();
+                        }
+                    }
+                } else if ("data".equals(field)) {
+                    data = p.nextTextValue();
+                } else {
+                    p.nextToken();
+                    p.skipChildren();
+                }
+            }
+        }
+        if (data == null || seq < 0) {
+            throw new IOException("Chunk is missing its data or sequence number");
+        }
+        Partial partial = partials.get(id);
+        if (partial == null) {
+            expire();
+            partial = new Partial();
+            partials.put(id, partial);
+        }
+        if (seq != partial.seq++) {
+            partials.remove(id);
+            throw new IOException("Chunk " + seq + " of message " + id + " is out of sequence");
+        }
+        partial.json.append(data);
+        if (last) {
+            partials.remove(id);
+            return partial.json.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Drop the messages which are too old, and the oldest message if there's no room for another.
+     */
+    private void expire()
+    {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Integer, Partial>> it = partials.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Partial> e = it.next();
+            if (now - e.getValue().started > MAX_AGE || partials.size() >= MAX_PARTIALS) {
+                logger.warn("Dropping message {}, whose last chunk never arrived", e.getKey());
+                it.remove();
+            } else {
+                // the rest are newer
+                break;
+            }
+        }
+    }
+
+    private static class Partial
+    {
+        private final StringBuilder json = new StringBuilder();
+        private final long started = System.nanoTime();
+        private int seq;
+    }
+}
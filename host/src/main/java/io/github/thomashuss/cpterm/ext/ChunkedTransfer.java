@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.ext;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+/**
+ * Splits a message which is too large for one frame into chunks, each of which is sent in its own frame.
+ * A chunk is a JSON object of the form
+ * <pre>
+ *     {"chunk":{"id":ID,"seq":SEQ,"last":LAST},"data":DATA}
+ * </pre>
+ * where {@code DATA} is a string holding the next slice of the message's JSON text.  Chunks of one message
+ * share an {@code ID} and are numbered from 0 by {@code SEQ}; {@code LAST} is {@code true} for the final
+ * chunk.  The receiver joins the slices and parses the result as the original message.  Since
+ * {@code "chunk"} is the first key both in insertion and in sorted order, a chunk can be recognized by its
+ * leading bytes alone, whichever way the browser orders keys.
+ */
+class ChunkedTransfer
+{
+    /**
+     * Largest frame the browser accepts from a native messaging host.
+     */
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    /**
+     * Characters of JSON text per chunk.  A character takes at most 3 bytes in UTF-8, or 2 bytes if it has
+     * to be escaped, so a chunk always fits in a frame.
+     */
+    private static final int MAX_CHUNK_CHARS = 256 * 1024;
+    private static final JsonFactory factory = new JsonFactory();
+    private final int id;
+    private final char[] json;
+    private final int limit;
+    private int pos;
+    private int seq;
+
+    /**
+     * Prepare a message to be sent in chunks.
+     *
+     * @param frame buffer holding the message, which is recycled once it has been copied
+     * @param id    identifies this message's chunks among those of other messages
+     */
+    ChunkedTransfer(FrameBuffer frame, int id)
+    {
+        this.id = id;
+        CharBuffer cb = frame.decodePayload();
+        frame.recycle();
+        json = cb.array();
+        pos = cb.arrayOffset() + cb.position();
+        limit = cb.arrayOffset() + cb.limit();
+    }
+
+    /**
+     * Whether a message needs to be sent in chunks.
+     *
+     * @param frame buffer holding the message
+     * @return {@code true} if the message does not fit in one frame
+     */
+    static boolean needsChunking(FrameBuffer frame)
+    {
+        return frame.payloadLength() > MAX_FRAME_LENGTH;
+    }
+
+    /**
+     * Whether there are more chunks to send.
+     *
+     * @return {@code true} if {@link #next()} may be called
+     */
+    boolean hasNext()
+    {
+        return pos < limit;
+    }
+
+    /**
+     * Encode the next chunk.
+     *
+     * @return buffer holding the chunk, with its header written
+     * @throws IOException if the chunk can't be encoded
+     */
+    FrameBuffer next()
+    throws IOException
+    {
+        int end = Math.min(limit, pos + MAX_CHUNK_CHARS);
+        if (end < limit && Character.isHighSurrogate(json[end - 1])) {
+            end--;
+        }
+        FrameBuffer frame = FrameBuffer.obtain();
+        try (JsonGenerator g = factory.createGenerator(frame)) {
+            g.writeStartObject();
+            g.writeObjectFieldStart("chunk");
+            g.writeNumberField("id", id);
+            g.writeNumberField("seq", seq);
+            g.writeBooleanField("last", end == limit);
+            g.writeEndObject();
+            g.writeFieldName("data");
+            g.writeString(json, pos, end - pos);
+            g.writeEndObject();
+        } catch (IOException e) {
+            frame.recycle();
+            throw e;
+        }
+        frame.writeHeader();
+        pos = end;
+        seq++;
+        return frame;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.ext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts messages to and from the bytes which are sent over the native messaging channel.  Implementations
+ * must be safe to use from several threads at once.
+ *
+ * @param <T> type of message
+ */
+public interface Codec<T>
+{
+    /**
+     * Decode a single message.
+     *
+     * @param buf    buffer containing the message
+     * @param offset position of the message in {@code buf}
+     * @param length length of the message in bytes
+     * @return decoded message
+     * @throws IOException if the message is malformed
+     */
+    T decode(byte[] buf, int offset, int length)
+    throws IOException;
+
+    /**
+     * Encode a single message.
+     *
+     * @param t   message to encode
+     * @param out receives the encoded message; must not be closed
+     * @throws IOException if the message can't be encoded
+     */
+    void encode(T t, OutputStream out)
+    throws IOException;
+}
@@ -0,0 +1,138 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.ext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Where a {@link NativeMessagingDaemon} can be reached, as advertised in its info file, and the handshake
+ * spoken between the daemon and a {@link NativeMessagingShim}.
+ * <p>
+ * After connecting, the shim sends one line holding the daemon's token and the shim's version, separated by a
+ * space.  The daemon answers with one line, {@link #OK} if it will serve the shim, or {@link #RESTART} if its
+ * version is different, in which case it exits so that one of the right version can be started.  A wrong token
+ * gets no answer.  Native messaging frames follow an {@link #OK} in both directions.
+ */
+final class DaemonInfo
+{
+    static final String OK = "ok";
+    static final String RESTART = "restart";
+    private static final String PORT = "port";
+    private static final String TOKEN = "token";
+    private static final String VERSION = "version";
+    private static final int MAX_LINE_LENGTH = 256;
+    final int port;
+    final String token;
+    final String version;
+
+    DaemonInfo(int port, String token, String version)
+    {
+        this.port = port;
+        this.token = token;
+        this.version = version;
+    }
+
+    /**
+     * Read an info file.
+     *
+     * @param file info file
+     * @return info, or {@code null} if the file doesn't exist or is malformed
+     */
+    static DaemonInfo read(Path file)
+    {
+        Properties p = new Properties();
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            p.load(r);
+            return new DaemonInfo(Integer.parseInt(p.getProperty(PORT)), p.getProperty(TOKEN),
+                    p.getProperty(VERSION, ""));
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replace the info file atomically.  The file is readable only by its owner, where the file system
+     * supports it, because the token grants access to the daemon.
+     *
+     * @param file info file
+     * @throws IOException if the file can't be written
+     */
+    void write(Path file)
+    throws IOException
+    {
+        Properties p = new Properties();
+        p.setProperty(PORT, Integer.toString(port));
+        p.setProperty(TOKEN, token);
+        p.setProperty(VERSION, version);
+        Path tmp = Files.createTempFile(file.getParent(), "daemon", ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                p.store(w, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Read one handshake line.  Reads one byte at a time, so nothing after the line is consumed.
+     *
+     * @param in stream to read from
+     * @return line without its terminator, or {@code null} if the stream ended first
+     * @throws IOException if the stream can't be read or the line is too long
+     */
+    static String readLine(InputStream in)
+    throws IOException
+    {
+        byte[] buf = new byte[MAX_LINE_LENGTH];
+        int n = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return null;
+            } else if (n == buf.length) {
+                throw new IOException("Handshake line is too long");
+            }
+            buf[n++] = (byte) b;
+        }
+        return new String(buf, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write one handshake line.
+     *
+     * @param out  stream to write to
+     * @param line line without its terminator
+     * @throws IOException if the stream can't be written
+     */
+    static void writeLine(OutputStream out, String line)
+    throws IOException
+    {
+        out.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.ext;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A growable buffer holding one outgoing message, preceded by room for its length header.  Buffers are
+ * pooled: a sender {@link #obtain() obtains} one, encodes a message into it, and hands it off to the writer
+ * thread, which {@link #recycle() recycles} it once the message is written.
+ */
+class FrameBuffer
+        extends OutputStream
+{
+    static final int HEADER_LENGTH = 4;
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * Buffers which grew larger than this are left for the garbage collector instead of being pooled.
+     */
+    private static final int MAX_POOLED_CAPACITY = 1 << 20;
+    private static final BlockingQueue<FrameBuffer> pool = new ArrayBlockingQueue<>(16);
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int count = HEADER_LENGTH;
+
+    private FrameBuffer()
+    {
+    }
+
+    /**
+     * Get an empty buffer, reusing a pooled one if possible.
+     *
+     * @return empty buffer
+     */
+    static FrameBuffer obtain()
+    {
+        FrameBuffer b = pool.poll();
+        return b == null ? new FrameBuffer() : b;
+    }
+
+    /**
+     * Return this buffer to the pool.  It must not be used by the caller afterward.
+     */
+    void recycle()
+    {
+        if (buf.length <= MAX_POOLED_CAPACITY) {
+            count = HEADER_LENGTH;
+            pool.offer(this);
+        }
+    }
+
+    private void ensureCapacity(int min)
+    {
+        if (min > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(min, buf.length * 2));
+        }
+    }
+
+    @Override
+    public void write(int b)
+    {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Get the length of the message, excluding the header.
+     *
+     * @return length in bytes
+     */
+    int payloadLength()
+    {
+        return count - HEADER_LENGTH;
+    }
+
+    /**
+     * Fill in the length header once the whole message has been written.
+     */
+    void writeHeader()
+    {
+        int len = payloadLength();
+        buf[0] = (byte) len;
+        buf[1] = (byte) (len >> 8);
+        buf[2] = (byte) (len >> 16);
+        buf[3] = (byte) (len >> 24);
+    }
+
+    /**
+     * Decode the message, which must be UTF-8 text.
+     *
+     * @return characters of the message
+     */
+    CharBuffer decodePayload()
+    {
+        return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(buf, HEADER_LENGTH, payloadLength()));
+    }
+
+    /**
+     * Wrap the header and message without copying.
+     *
+     * @return buffer over the whole frame
+     */
+    ByteBuffer toByteBuffer()
+    {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.ext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link NativeMessagingHost} running between browser sessions.  The process the browser starts is a
+ * {@link NativeMessagingShim}, which connects to the daemon over loopback and forwards frames both ways, so the
+ * host's state and anything it has warmed up outlive the browser's connection.
+ * <p>
+ * The daemon serves one extension at a time.  A new connection takes over from the current one, since the
+ * browser only ever talks to one host.  Connections must present the random token from the daemon's info file,
+ * which is only readable by the user who started it.  The daemon exits after being idle for
+ * {@link #IDLE_TIMEOUT} milliseconds, or when a shim of a different version connects.
+ */
+public class NativeMessagingDaemon
+{
+    private static final Logger logger = LoggerFactory.getLogger(NativeMessagingDaemon.class);
+    private static final int IDLE_TIMEOUT = (int) TimeUnit.HOURS.toMillis(1);
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final long LOCK_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+    private static final long LOCK_RETRY_INTERVAL = 50;
+    private final NativeMessagingHost<?> host;
+    private final Path infoFile;
+    private final String version;
+    private final String token;
+    private SocketChannel session;
+    private Thread sessionThread;
+
+    /**
+     * Create a new daemon.
+     *
+     * @param host     host to connect extensions to
+     * @param infoFile file to advertise the daemon in; a lock file is kept next to it
+     * @param version  version of the host, which shims must match
+     */
+    public NativeMessagingDaemon(NativeMessagingHost<?> host, Path infoFile, String version)
+    {
+        this.host = host;
+        this.infoFile = infoFile;
+        this.version = version;
+        byte[] t = new byte[16];
+        new SecureRandom().nextBytes(t);
+        StringBuilder sb = new StringBuilder(t.length * 2);
+        for (byte b : t) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        token = sb.toString();
+    }
+
+    /**
+     * Serve connections until idle or replaced.  Returns right away if another daemon holds the lock and does
+     * not give it up soon, so that racing shims don't leave extra daemons behind.
+     *
+     * @throws IOException if the daemon can't be advertised or connections can't be accepted
+     */
+    public void serve()
+    throws IOException
+    {
+        Files.createDirectories(infoFile.getParent());
+        Path lockFile = infoFile.resolveSibling(infoFile.getFileName() + ".lock");
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+             FileLock lock = acquire(lockChannel)) {
+            if (lock == null) {
+                logger.info("Another daemon is already running");
+                return;
+            }
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                new DaemonInfo(server.socket().getLocalPort(), token, version).write(infoFile);
+                logger.info("Listening on port {}", server.socket().getLocalPort());
+                try {
+                    acceptLoop(server.socket());
+                } finally {
+                    Files.deleteIfExists(infoFile);
+                    endSession();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait a bit for the lock, which a daemon being replaced may still hold.
+     *
+     * @param lockChannel lock file
+     * @return lock, or {@code null} if it's still held by someone else
+     * @throws IOException if the lock can't be acquired for another reason
+     */
+    private static FileLock acquire(FileChannel lockChannel)
+    throws IOException
+    {
+        long deadline = System.nanoTime() + LOCK_TIMEOUT;
+        FileLock lock;
+        while ((lock = lockChannel.tryLock()) == null && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(LOCK_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return lock;
+    }
+
+    private void acceptLoop(ServerSocket server)
+    throws IOException
+    {
+        server.setSoTimeout(IDLE_TIMEOUT);
+        while (true) {
+            Socket s;
+            try {
+                s = server.accept();
+            } catch (SocketTimeoutException e) {
+                if (sessionThread != null && sessionThread.isAlive()) {
+                    continue;
+                }
+                logger.info("Idle, exiting");
+                return;
+            }
+            SocketChannel sc = s.getChannel();
+            try {
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(HANDSHAKE_TIMEOUT);
+                String[] hello;
+                String line = DaemonInfo.readLine(s.getInputStream());
+                if (line == null || (hello = line.split(" ", 2)).length != 2
+                        || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                        hello[0].getBytes(StandardCharsets.UTF_8))) {
+                    logger.warn("Rejected connection with bad token");
+                    sc.close();
+                    continue;
+                } else if (!version.equals(hello[1])) {
+                    logger.info("Replaced by version {}", hello[1]);
+                    DaemonInfo.writeLine(s.getOutputStream(), DaemonInfo.RESTART);
+                    sc.close();
+                    return;
+                }
+                DaemonInfo.writeLine(s.getOutputStream(), DaemonInfo.OK);
+                s.setSoTimeout(0);
+            } catch (IOException e) {
+                logger.warn("Handshake failed", e);
+                sc.close();
+                continue;
+            }
+            endSession();
+            startSession(sc);
+        }
+    }
+
+    private void startSession(SocketChannel sc)
+    {
+        session = sc;
+        sessionThread = new Thread(() -> {
+            logger.info("Extension connected");
+            try (SocketChannel c = sc) {
+                host.listen(Channels.newInputStream(c), c);
+            } catch (AsynchronousCloseException ignored) {
+            } catch (IOException e) {
+                logger.error("Connection to extension failed", e);
+            }
+            logger.info("Extension disconnected");
+        }, "native-messaging-session");
+        sessionThread.start();
+    }
+
+    /**
+     * Disconnect the current extension, if any, and wait for its session to finish.
+     */
+    private void endSession()
+    {
+        if (sessionThread != null) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                logger.warn("Couldn't close connection", e);
+            }
+            try {
+                sessionThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            session = null;
+            sessionThread = null;
+        }
+    }
+}
@@ -16,69 +16,124 @@
 
 package io.github.thomashuss.cpterm.ext;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.nio.channels.GatheringByteChannel;
 
 /**
- * Sends and listens for messages to and from the extension.
+ * Sends and listens for messages to and from the extension.  Messages larger than the browser allows in one
+ * frame are split into chunks and joined back together transparently, in both directions.
+ * <p>
+ * The extension is usually connected over standard input and output, but a host can serve any number of
+ * connections one after another, such as when it's run by a {@link NativeMessagingDaemon}.
  *
  * @param <T> type of message
  */
 public abstract class NativeMessagingHost<T>
 {
-    private static final Object lock = new Object();
-    private static final ObjectMapper mapper = new ObjectMapper();
-    private static final NativeMessagingInputStream nis = new NativeMessagingInputStream();
-    private static final OutputStream os = System.out;
-    private final Class<T> messageClass;
+    private final Codec<T> codec;
+    /**
+     * Writer for the connected extension, or {@code null} if not connected.
+     */
+    private volatile NativeMessagingWriter writer;
 
-    public NativeMessagingHost(Class<T> messageClass)
+    public NativeMessagingHost(Codec<T> codec)
     {
-        this.messageClass = messageClass;
+        this.codec = codec;
     }
 
     /**
-     * Listen for new messages and invoke {@link NativeMessagingHost#received(T)} when a message is received.
-     * Blocks until no more messages can be received.
+     * Listen for new messages on standard input and invoke {@link NativeMessagingHost#received(T)} when a
+     * message is received.  Blocks until no more messages can be received.
      *
      * @throws IOException if the message can't be read
      */
     public final void listen()
     throws IOException
     {
-        while (nis.waitForMessage()) {
-            synchronized (lock) {
-                if (!received(mapper.readValue(nis, messageClass))) {
+        listen(System.in, new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+
+    /**
+     * Listen for new messages from an extension connected over the given streams, and invoke
+     * {@link NativeMessagingHost#received(T)} when a message is received.  Messages are sent to the same
+     * extension until this returns.  Blocks until no more messages can be received.
+     *
+     * @param in  stream to read messages from
+     * @param out channel to write messages to
+     * @throws IOException if the message can't be read
+     */
+    public final void listen(InputStream in, GatheringByteChannel out)
+    throws IOException
+    {
+        NativeMessagingInputStream nis = new NativeMessagingInputStream(in);
+        NativeMessagingWriter w = new NativeMessagingWriter(out);
+        w.start();
+        writer = w;
+        try {
+            connected();
+            // each connection starts with no partial messages, so those cut off by a disconnect are dropped
+            ChunkAssembler assembler = new ChunkAssembler();
+            while (nis.waitForMessage()) {
+                byte[] buf = nis.array();
+                int offset = nis.offset();
+                int length = nis.length();
+                if (ChunkAssembler.isChunk(buf, offset, length)) {
+                    if ((buf = assembler.add(buf, offset, length)) == null) {
+                        continue;
+                    }
+                    offset = 0;
+                    length = buf.length;
+                }
+                if (!received(codec.decode(buf, offset, length))) {
                     break;
                 }
             }
+        } finally {
+            writer = null;
+            w.stop();
         }
     }
 
     /**
-     * Send a message to the extension.
+     * Send a message to the extension.  The message is serialized on the calling thread into a pooled buffer
+     * and written asynchronously by the writer thread, so this never blocks on other senders or on the listener.
      *
      * @param t message to send
-     * @throws IOException if the message can't be sent
+     * @throws IOException if the message can't be serialized, or if the extension is not connected or can no
+     *                     longer be written to
      */
     public final void send(T t)
     throws IOException
     {
-        synchronized (lock) {
-            byte[] ser = mapper.writeValueAsBytes(t);
-            os.write(ser.length & 0xFF);
-            os.write((ser.length >> 8) & 0xFF);
-            os.write((ser.length >> 16) & 0xFF);
-            os.write((ser.length >> 24) & 0xFF);
-            os.write(ser);
+        NativeMessagingWriter writer = this.writer;
+        if (writer == null) {
+            throw new IOException("Extension is not connected");
         }
+        FrameBuffer frame = FrameBuffer.obtain();
+        try {
+            codec.encode(t, frame);
+        } catch (IOException | RuntimeException e) {
+            frame.recycle();
+            throw e;
+        }
+        frame.writeHeader();
+        writer.enqueue(frame);
+    }
+
+    /**
+     * Invoked on the same thread as {@link NativeMessagingHost#listen()} when an extension connects, before any
+     * of its messages are read.  Messages may be sent from here.
+     */
+    protected void connected()
+    {
     }
 
     /**
      * Invoked on the same thread as {@link NativeMessagingHost#listen()} when a message is received.
-     * Blocks listening.
+     * Blocks listening, so long-running handlers should be run on another thread.
      *
      * @param t received message
      * @return {@code true} if should continue listening for messages
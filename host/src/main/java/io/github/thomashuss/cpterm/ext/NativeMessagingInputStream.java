@@ -16,86 +16,185 @@
 
 package io.github.thomashuss.cpterm.ext;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * Provides a fixed length stream from the "indeterminate length" {@link System#in} stream so that Jackson
- * can deserialize a single message.
+ * Splits the "indeterminate length" stream of native messages into single messages so that Jackson
+ * can deserialize them one at a time.  The underlying stream is read in large chunks into a reusable
+ * buffer, so several messages which arrive back-to-back are framed without touching the underlying stream
+ * again.  The current message can be read as a stream, or handed directly to a parser as a slice of
+ * {@link #array()} without copying.
  */
 class NativeMessagingInputStream
         extends InputStream
 {
-    private static final InputStream in = System.in;
-    private int u_length;
-    private int u_pos;
+    private static final int HEADER_LENGTH = 4;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private final InputStream in;
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    /**
+     * Start of the bytes in {@link #buf} which have not been framed yet.
+     */
+    private int head;
+    /**
+     * End of the bytes in {@link #buf} which were read from {@link #in}.
+     */
+    private int tail;
+    private int msgStart;
+    private int msgEnd;
+    private int pos;
+
+    /**
+     * Create a new stream of messages.
+     *
+     * @param in stream of length-prefixed messages
+     */
+    NativeMessagingInputStream(InputStream in)
+    {
+        this.in = in;
+    }
 
     /**
-     * Listen for messages.  Blocks until a message is in the stream or no more messages can be read.
+     * Listen for messages.  Blocks until a whole message is in the buffer or no more messages can be read.
+     * Any unread portion of the previous message is discarded.
      *
      * @return {@code true} if a message can be read, {@code false} otherwise
-     * @throws IOException from {@link InputStream#read()}
+     * @throws IOException from {@link InputStream#read(byte[], int, int)}, or if the stream ended in the
+     *                     middle of a message
      */
     boolean waitForMessage()
     throws IOException
     {
-        byte b0 = (byte) in.read();
-        if (b0 == -1) return false;
-        byte b1 = (byte) in.read();
-        byte b2 = (byte) in.read();
-        byte b3 = (byte) in.read();
-        u_length = (b3 << 24) & 0xff000000 | (b2 << 16) & 0x00ff0000 | (b1 << 8) & 0x0000ff00
-                | (b0) & 0x000000ff;
-        u_pos = 0;
+        head = msgEnd;
+        if (head == tail && buf.length > INITIAL_CAPACITY) {
+            // don't hold on to the memory used by an unusually large message
+            buf = new byte[INITIAL_CAPACITY];
+            head = tail = 0;
+        }
+        if (!fill(HEADER_LENGTH)) {
+            if (head == tail) {
+                msgStart = msgEnd = pos = head;
+                return false;
+            }
+            throw new EOFException("Stream ended in message header");
+        }
+        int length = (buf[head + 3] << 24) & 0xff000000 | (buf[head + 2] << 16) & 0x00ff0000
+                | (buf[head + 1] << 8) & 0x0000ff00 | buf[head] & 0x000000ff;
+        if (length < 0) {
+            throw new IOException("Message length exceeds " + Integer.MAX_VALUE + " bytes");
+        }
+        head += HEADER_LENGTH;
+        if (!fill(length)) {
+            throw new EOFException("Stream ended in message body");
+        }
+        msgStart = pos = head;
+        msgEnd = head + length;
         return true;
     }
 
-    @Override
-    public int available()
+    /**
+     * Ensure that at least {@code n} bytes starting at {@link #head} are in the buffer, compacting or growing
+     * the buffer if there isn't room for them.
+     *
+     * @param n number of bytes
+     * @return {@code true} if the bytes are available, {@code false} if the stream ended first
+     * @throws IOException from {@link InputStream#read(byte[], int, int)}
+     */
+    private boolean fill(int n)
     throws IOException
     {
-        if (Integer.compareUnsigned(u_pos, u_length) >= 0) {
-            return 0;
+        int buffered = tail - head;
+        if (buffered >= n) {
+            return true;
         }
-        int u_remaining = u_length - u_pos;
-        return Math.min(in.available(),
-                Integer.compareUnsigned(u_remaining, Integer.MAX_VALUE) >= 0 ? Integer.MAX_VALUE : u_remaining);
+        if (buf.length - head < n) {
+            byte[] dst = buf.length < n ? new byte[Math.max(n, buf.length * 2)] : buf;
+            System.arraycopy(buf, head, dst, 0, buffered);
+            buf = dst;
+            head = 0;
+            tail = buffered;
+        }
+        while (tail - head < n) {
+            int r = in.read(buf, tail, buf.length - tail);
+            if (r == -1) {
+                return false;
+            }
+            tail += r;
+        }
+        return true;
+    }
+
+    /**
+     * Get the array backing the current message.  Only valid until the next call to {@link #waitForMessage()}.
+     *
+     * @return buffer containing the message
+     */
+    byte[] array()
+    {
+        return buf;
+    }
+
+    /**
+     * Get the position of the current message in {@link #array()}.
+     *
+     * @return offset of first byte of the message
+     */
+    int offset()
+    {
+        return msgStart;
+    }
+
+    /**
+     * Get the length of the current message.
+     *
+     * @return length in bytes
+     */
+    int length()
+    {
+        return msgEnd - msgStart;
+    }
+
+    @Override
+    public int available()
+    {
+        return msgEnd - pos;
     }
 
     @Override
     public int read()
-    throws IOException
     {
-        if (Integer.compareUnsigned(u_pos, u_length) >= 0) {
-            return -1;
-        }
-        int ret = in.read();
-        if (ret != -1) {
-            u_pos++;
-        }
-        return ret;
+        return pos < msgEnd ? buf[pos++] & 0xff : -1;
     }
 
     @Override
     public int read(byte[] buffer, int offset, int len)
-    throws IOException
     {
+        if (len == 0) {
+            return 0;
+        }
         int a = available();
-        if (a == -1) {
+        if (a == 0) {
             return -1;
         }
-        int ret = in.read(buffer, offset, Math.min(len, a));
-        if (ret != -1) {
-            u_pos += ret;
-        }
+        int ret = Math.min(len, a);
+        System.arraycopy(buf, pos, buffer, offset, ret);
+        pos += ret;
+        return ret;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        int ret = (int) Math.max(0L, Math.min(n, available()));
+        pos += ret;
         return ret;
     }
 
-    @SuppressWarnings("StatementWithEmptyBody")
     @Override
     public void close()
-    throws IOException
     {
-        while (read() != -1) ;
+        pos = msgEnd;
     }
 }
@@ -0,0 +1,181 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.ext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process a browser starts when a {@link NativeMessagingDaemon} is used.  It connects to the daemon, starting
+ * one first if none is running, and then copies bytes between standard input and output and the daemon without
+ * looking at them.  Only what's needed for that is loaded, so the shim starts in a fraction of the time the host
+ * takes.
+ */
+public final class NativeMessagingShim
+{
+    private static final Logger logger = LoggerFactory.getLogger(NativeMessagingShim.class);
+    private static final long START_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private static final long RETRY_INTERVAL = 50;
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] SETSID = {"/usr/bin/setsid", "/bin/setsid"};
+
+    private NativeMessagingShim()
+    {
+    }
+
+    /**
+     * Forward standard input and output to the daemon until either side disconnects.
+     *
+     * @param infoFile      info file of the daemon
+     * @param version       version the daemon must have
+     * @param daemonCommand command which starts a daemon advertised in {@code infoFile}
+     * @param log           file to append the output of a started daemon to
+     * @throws IOException if the daemon can't be reached or started
+     */
+    public static void run(Path infoFile, String version, List<String> daemonCommand, Path log)
+    throws IOException
+    {
+        Socket s = connect(infoFile, version, daemonCommand, log);
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[BUFFER_SIZE];
+            try {
+                OutputStream out = s.getOutputStream();
+                int n;
+                while ((n = System.in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+                s.shutdownOutput();
+            } catch (IOException e) {
+                logger.debug("Stopped forwarding to daemon", e);
+            }
+        }, "shim-stdin");
+        t.setDaemon(true);
+        t.start();
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        try (Socket c = s) {
+            InputStream in = c.getInputStream();
+            OutputStream out = new FileOutputStream(FileDescriptor.out);
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Connect to the daemon, starting it if it doesn't answer.
+     *
+     * @return connection which has completed the handshake
+     * @throws IOException if no daemon answers in time
+     */
+    private static Socket connect(Path infoFile, String version, List<String> daemonCommand, Path log)
+    throws IOException
+    {
+        long deadline = System.nanoTime() + START_TIMEOUT;
+        boolean started = false;
+        while (true) {
+            DaemonInfo info = DaemonInfo.read(infoFile);
+            if (info != null) {
+                Socket s = handshake(info, version);
+                if (s != null) {
+                    return s;
+                }
+            }
+            if (!started) {
+                start(daemonCommand, log);
+                started = true;
+            } else if (System.nanoTime() > deadline) {
+                throw new IOException("Daemon did not start in time; see " + log);
+            }
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return connection to the daemon, or {@code null} if it's gone, or is the wrong version and is exiting
+     */
+    private static Socket handshake(DaemonInfo info, String version)
+    {
+        Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), info.port), CONNECT_TIMEOUT);
+            s.setSoTimeout(HANDSHAKE_TIMEOUT);
+            DaemonInfo.writeLine(s.getOutputStream(), info.token + ' ' + version);
+            if (DaemonInfo.OK.equals(DaemonInfo.readLine(s.getInputStream()))) {
+                s.setSoTimeout(0);
+                return s;
+            }
+        } catch (IOException e) {
+            logger.debug("Daemon didn't answer", e);
+        }
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+        return null;
+    }
+
+    /**
+     * Start a daemon which outlives this process.  Where possible, it is put in its own session, so that it
+     * isn't killed along with the browser's process group.
+     */
+    private static void start(List<String> daemonCommand, Path log)
+    throws IOException
+    {
+        List<String> cmd = new ArrayList<>(daemonCommand.size() + 1);
+        for (String setsid : SETSID) {
+            if (new File(setsid).canExecute()) {
+                cmd.add(setsid);
+                break;
+            }
+        }
+        cmd.addAll(daemonCommand);
+        logger.info("Starting daemon");
+        File logFile = log.toFile();
+        File parent = logFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        Process p = new ProcessBuilder(cmd)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+                .start();
+        p.getOutputStream().close();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.ext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes length-prefixed messages to a channel on a dedicated thread.  Senders only enqueue serialized
+ * messages, so they never wait on each other or on the channel.  Whatever accumulated in the queue while the
+ * previous batch was being written is written as one batch: every frame in the batch goes out in a single
+ * gathering write, after which the frames' buffers are recycled.
+ * <p>
+ * Messages too large for one frame are sent as a {@link ChunkedTransfer}.  Each batch carries at most one
+ * chunk of every message being transferred, so small messages queued behind a large one go out in the
+ * next batch instead of waiting for the whole transfer.
+ */
+class NativeMessagingWriter
+        implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger(NativeMessagingWriter.class);
+    private static final int MAX_BATCH = 64;
+    /**
+     * Milliseconds {@link #stop()} waits for queued messages to be written before giving up on them.
+     */
+    private static final long STOP_TIMEOUT = 5000;
+    /**
+     * Queued by {@link #stop()} after the last message; never written or recycled.
+     */
+    private static final FrameBuffer STOP = FrameBuffer.obtain();
+    private final BlockingQueue<FrameBuffer> queue = new LinkedBlockingQueue<>();
+    private final GatheringByteChannel out;
+    /**
+     * Messages which are partially sent, in the order their next chunks will be written.
+     */
+    private final ArrayDeque<ChunkedTransfer> transfers = new ArrayDeque<>();
+    private volatile IOException failure;
+    private volatile boolean stopped;
+    private Thread thread;
+    private int nextTransferId;
+
+    /**
+     * Create a new writer.  Nothing is written until {@link #start()} is invoked.
+     *
+     * @param out channel to write messages to
+     */
+    NativeMessagingWriter(GatheringByteChannel out)
+    {
+        this.out = out;
+    }
+
+    /**
+     * Start the writer thread.  The thread does not keep the program alive.
+     */
+    void start()
+    {
+        thread = new Thread(this, "native-messaging-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the writer thread once the messages queued so far are written, and wait for it to finish.  Messages
+     * queued afterward are rejected.  If the channel stays blocked for too long, the remaining messages are
+     * discarded.
+     */
+    void stop()
+    {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            queue.add(STOP);
+        }
+        if (thread != null) {
+            try {
+                thread.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                logger.warn("Message channel is blocked; discarding unwritten messages");
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queue a serialized message to be written.  Does not block.
+     *
+     * @param frame buffer holding the message, with its header written; must not be used by the caller
+     *              after it's queued
+     * @throws IOException if a previous write failed, meaning no more messages can be written
+     */
+    synchronized void enqueue(FrameBuffer frame)
+    throws IOException
+    {
+        if (failure != null || stopped) {
+            frame.recycle();
+            throw new IOException("Message channel is closed", failure);
+        }
+        queue.add(frame);
+    }
+
+    @Override
+    public void run()
+    {
+        ArrayList<FrameBuffer> batch = new ArrayList<>(MAX_BATCH);
+        ByteBuffer[] vec = new ByteBuffer[MAX_BATCH];
+        // set once the stop marker is taken; the remaining transfers are then finished without waiting
+        boolean draining = false;
+        try {
+            while (true) {
+                FrameBuffer head = transfers.isEmpty() && !draining ? queue.take() : queue.poll();
+                if (head != null) {
+                    batch.add(head);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Iterator<FrameBuffer> it = batch.iterator(); it.hasNext(); ) {
+                        FrameBuffer frame = it.next();
+                        if (frame == STOP) {
+                            it.remove();
+                            draining = true;
+                        } else if (ChunkedTransfer.needsChunking(frame)) {
+                            it.remove();
+                            transfers.add(new ChunkedTransfer(frame, nextTransferId++));
+                        }
+                    }
+                }
+                for (int i = transfers.size(); i > 0; i--) {
+                    ChunkedTransfer t = transfers.remove();
+                    batch.add(t.next());
+                    if (t.hasNext()) {
+                        transfers.add(t);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    // only once draining, with nothing left to write
+                    break;
+                }
+                int n = 0;
+                long remaining = 0;
+                if (vec.length < batch.size()) {
+                    vec = new ByteBuffer[batch.size()];
+                }
+                for (FrameBuffer frame : batch) {
+                    ByteBuffer bb = frame.toByteBuffer();
+                    remaining += bb.remaining();
+                    vec[n++] = bb;
+                }
+                int first = 0;
+                while (remaining > 0) {
+                    remaining -= out.write(vec, first, n - first);
+                    while (first < n && !vec[first].hasRemaining()) {
+                        first++;
+                    }
+                }
+                Arrays.fill(vec, 0, n, null);
+                for (FrameBuffer frame : batch) {
+                    frame.recycle();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            if (!stopped) {
+                logger.error("Could not write to message channel", e);
+            }
+            failure = e;
+        }
+        queue.clear();
+        transfers.clear();
+    }
+}
@@ -16,44 +16,67 @@
 
 package io.github.thomashuss.cpterm.host;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.github.thomashuss.cpterm.artifacts.code.Languages;
 import io.github.thomashuss.cpterm.artifacts.code.Watcher;
 import io.github.thomashuss.cpterm.artifacts.html.ConversionException;
 import io.github.thomashuss.cpterm.artifacts.html.Converter;
 import io.github.thomashuss.cpterm.artifacts.html.ExternalConverter;
+import io.github.thomashuss.cpterm.artifacts.html.ImageCache;
+import io.github.thomashuss.cpterm.artifacts.html.ProblemDocument;
+import io.github.thomashuss.cpterm.artifacts.html.RenderCache;
 import io.github.thomashuss.cpterm.ext.MessageServer;
+import io.github.thomashuss.cpterm.ext.NativeMessagingDaemon;
 import io.github.thomashuss.cpterm.ext.NativeMessagingHost;
 import io.github.thomashuss.cpterm.ext.WaitingFuture;
 import io.github.thomashuss.cpterm.host.message.Command;
 import io.github.thomashuss.cpterm.host.message.LogEntry;
 import io.github.thomashuss.cpterm.host.message.Message;
+import io.github.thomashuss.cpterm.host.message.MessageCodec;
 import io.github.thomashuss.cpterm.host.message.NewProblem;
+import io.github.thomashuss.cpterm.host.message.RequestCode;
 import io.github.thomashuss.cpterm.host.message.SetCode;
+import io.github.thomashuss.cpterm.host.message.SetCodeDelta;
 import io.github.thomashuss.cpterm.host.message.SetPrefs;
 import io.github.thomashuss.cpterm.host.message.TestResults;
 import io.github.thomashuss.cpterm.host.message.Version;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.Desktop;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -84,6 +107,10 @@ public class CPTermHost
      * Default value for the flag indicating whether to write the problem code to a temporary file.
      */
     private static final String DEFAULT_CODE_USE_TEMP_FILE = "true";
+    /**
+     * Preferences key for the milliseconds the code file must go without changes before it's sent.
+     */
+    private static final String WATCH_QUIET_PERIOD = "watch_quiet_period";
     /**
      * Preferences key for the path to the problem code directory if not using a temporary file.
      */
@@ -92,6 +119,19 @@ public class CPTermHost
      * Preferences value for the Open HTML to PDF problem converter.
      */
     private static final String OPEN_HTML_TO_PDF = "open_html_to_pdf";
+    /**
+     * Preferences key for fonts to register with Open HTML to PDF, as comma-separated
+     * {@code family[:weight[:style]]=path} entries.
+     */
+    private static final String PDF_FONTS = "pdf_fonts";
+    /**
+     * Preferences key for the flag indicating whether to optimize PDFs from Open HTML to PDF.
+     */
+    private static final String OPTIMIZE_PDF = "optimize_pdf";
+    /**
+     * Default value for the flag indicating whether to optimize PDFs from Open HTML to PDF.
+     */
+    private static final String DEFAULT_OPTIMIZE_PDF = "false";
     /**
      * Preferences value for the Pandoc problem converter.
      */
@@ -116,10 +156,85 @@ public class CPTermHost
      * Preferences key for additional LibreOffice command line arguments.
      */
     private static final String LIBREOFFICE_ARGS = "libreoffice_args";
+    /**
+     * Preferences key for the flag indicating whether to keep LibreOffice running between conversions.
+     */
+    private static final String LIBREOFFICE_WORKER = "libreoffice_worker";
+    /**
+     * Default value for the flag indicating whether to keep LibreOffice running between conversions.
+     */
+    private static final String DEFAULT_LIBREOFFICE_WORKER = "false";
+    /**
+     * Preferences key for the flag indicating whether to keep {@code pandoc server} running between conversions.
+     */
+    private static final String PANDOC_SERVER = "pandoc_server";
+    /**
+     * Default value for the flag indicating whether to keep {@code pandoc server} running between conversions.
+     */
+    private static final String DEFAULT_PANDOC_SERVER = "true";
+    /**
+     * Preferences key for symbols Pandoc should get as TeX math, as whitespace-separated {@code symbol=tex}
+     * pairs changing the defaults.
+     */
+    private static final String PANDOC_TEX_SYMBOLS = "pandoc_tex_symbols";
+    /**
+     * Preferences key for the number of conversions an external converter may run at once.
+     */
+    private static final String CONVERTER_WORKERS = "converter_workers";
+    /**
+     * Default value for the number of conversions an external converter may run at once.
+     */
+    private static final String DEFAULT_CONVERTER_WORKERS = "1";
+    /**
+     * Preferences key for the number of conversions which may wait for an external converter.
+     */
+    private static final String CONVERTER_QUEUE = "converter_queue";
+    /**
+     * Default value for the number of conversions which may wait for an external converter.
+     */
+    private static final String DEFAULT_CONVERTER_QUEUE = "8";
+    /**
+     * Preferences key for the number of conversions after which a running external converter is restarted.
+     */
+    private static final String CONVERTER_MAX_JOBS = "converter_max_jobs";
+    /**
+     * Default value for the number of conversions after which a running external converter is restarted.
+     */
+    private static final String DEFAULT_CONVERTER_MAX_JOBS = "50";
+    /**
+     * Preferences key for the seconds an external conversion may take, or 0 for no limit.
+     */
+    private static final String CONVERTER_TIMEOUT = "converter_timeout";
+    /**
+     * Default value for the seconds an external conversion may take.
+     */
+    private static final String DEFAULT_CONVERTER_TIMEOUT = "120";
+    /**
+     * Preferences key for the minutes a running external converter may be idle before it's stopped, or 0 to keep
+     * it running.
+     */
+    private static final String CONVERTER_IDLE_TIMEOUT = "converter_idle_timeout";
+    /**
+     * Default value for the minutes a running external converter may be idle.
+     */
+    private static final String DEFAULT_CONVERTER_IDLE_TIMEOUT = "10";
+    /**
+     * Command server command which writes the state of the external converter.
+     */
+    private static final String STATS = "stats";
+    /**
+     * Directory for the user profiles of LibreOffice workers.
+     */
+    private static final Path LIBREOFFICE_PROFILE = Paths.get(System.getProperty("user.home"), ".cpterm",
+            "libreoffice");
     /**
      * Preferences value for the raw HTML problem converter.
      */
     private static final String RAW_HTML = "raw_html";
+    /**
+     * Preferences value for the built-in Markdown and plain text problem converter.
+     */
+    private static final String TEXT = "text";
     /**
      * Preferences key for the flag indicating whether to render SVG when converting problems to raw HTML.
      */
@@ -144,6 +259,12 @@ public class CPTermHost
      * Default value for the problem file suffix.
      */
     private static final String DEFAULT_PROBLEM_FILE_SUFFIX = ".pdf";
+    /**
+     * Preferences key for further problem statement files, rendered from the same problem as the main one and
+     * written next to it.  Given as comma-separated pairs of a problem converter and a file suffix, such as
+     * {@code raw_html:.html,pandoc:.md}.
+     */
+    private static final String EXTRA_PROBLEM_OUTPUTS = "extra_problem_outputs";
     /**
      * Preferences key for the flag indicating whether to render problem statements.
      */
@@ -221,6 +342,59 @@ public class CPTermHost
      * Default value for the flag indicating whether to create a new directory for each problem if not using temp files.
      */
     private static final String DEFAULT_CREATE_DIR_FOR_PROBLEM = "true";
+    /**
+     * Preferences key for the flag indicating whether to warm up the problem converter in the background as
+     * soon as it's configured, rather than setting it up when the first problem is rendered.
+     */
+    private static final String WARM_UP_RENDERER = "warm_up_renderer";
+    /**
+     * Default value for the flag indicating whether to warm up the problem converter.
+     */
+    private static final String DEFAULT_WARM_UP_RENDERER = "true";
+    /**
+     * Preferences key for the size limit of the render cache in megabytes, or 0 to disable it.
+     */
+    private static final String RENDER_CACHE_SIZE = "render_cache_size";
+    /**
+     * Default value for the size limit of the render cache.
+     */
+    private static final String DEFAULT_RENDER_CACHE_SIZE = "256";
+    /**
+     * Where rendered problems are cached between runs.
+     */
+    private static final Path RENDER_CACHE_DIR = Paths.get(System.getProperty("user.home"), ".cpterm", "render-cache");
+    /**
+     * Preferences key for the size limit of the image cache in megabytes, or 0 to disable it.
+     */
+    private static final String IMAGE_CACHE_SIZE = "image_cache_size";
+    /**
+     * Default value for the size limit of the image cache.
+     */
+    private static final String DEFAULT_IMAGE_CACHE_SIZE = "64";
+    /**
+     * Preferences key for the number of hours a cached image is used before it's fetched again.
+     */
+    private static final String IMAGE_CACHE_TTL = "image_cache_ttl";
+    /**
+     * Default value for the number of hours a cached image is used before it's fetched again.
+     */
+    private static final String DEFAULT_IMAGE_CACHE_TTL = "168";
+    /**
+     * Where remote images in problem statements are cached between runs.
+     */
+    private static final Path IMAGE_CACHE_DIR = Paths.get(System.getProperty("user.home"), ".cpterm", "image-cache");
+    /**
+     * Problem rendered to warm up converters and to train the host.
+     */
+    private static final String SAMPLE_PROBLEM = "training/problem.html";
+    /**
+     * When this class was loaded, for timing startup.
+     */
+    private static final long LOADED = System.nanoTime();
+    /**
+     * Milliseconds to give the file watcher to pick up an edit during training.
+     */
+    private static final long TRAINING_WATCH_WAIT = 500;
     /**
      * Matches non-alphanumeric characters.
      */
@@ -233,13 +407,25 @@ public class CPTermHost
     static {
         DEFAULTS.setProperty(CODE_FILE_PATH, "");
         DEFAULTS.setProperty(CODE_USE_TEMP_FILE, DEFAULT_CODE_USE_TEMP_FILE);
+        DEFAULTS.setProperty(WATCH_QUIET_PERIOD, String.valueOf(Watcher.DEFAULT_QUIET_PERIOD));
         DEFAULTS.setProperty(COMMAND_SERVER_PORT, DEFAULT_COMMAND_SERVER_PORT);
         DEFAULTS.setProperty(CREATE_DIR_FOR_PROBLEM, DEFAULT_CREATE_DIR_FOR_PROBLEM);
         DEFAULTS.setProperty(EDITOR, DEFAULT_EDITOR);
+        DEFAULTS.setProperty(EXTRA_PROBLEM_OUTPUTS, "");
         DEFAULTS.setProperty(LIBREOFFICE_ARGS, "");
         DEFAULTS.setProperty(LIBREOFFICE_PATH, "");
+        DEFAULTS.setProperty(LIBREOFFICE_WORKER, DEFAULT_LIBREOFFICE_WORKER);
+        DEFAULTS.setProperty(PANDOC_SERVER, DEFAULT_PANDOC_SERVER);
+        DEFAULTS.setProperty(CONVERTER_WORKERS, DEFAULT_CONVERTER_WORKERS);
+        DEFAULTS.setProperty(CONVERTER_QUEUE, DEFAULT_CONVERTER_QUEUE);
+        DEFAULTS.setProperty(CONVERTER_MAX_JOBS, DEFAULT_CONVERTER_MAX_JOBS);
+        DEFAULTS.setProperty(CONVERTER_TIMEOUT, DEFAULT_CONVERTER_TIMEOUT);
+        DEFAULTS.setProperty(CONVERTER_IDLE_TIMEOUT, DEFAULT_CONVERTER_IDLE_TIMEOUT);
         DEFAULTS.setProperty(PANDOC_ARGS, "");
         DEFAULTS.setProperty(PANDOC_PATH, "");
+        DEFAULTS.setProperty(PANDOC_TEX_SYMBOLS, "");
+        DEFAULTS.setProperty(PDF_FONTS, "");
+        DEFAULTS.setProperty(OPTIMIZE_PDF, DEFAULT_OPTIMIZE_PDF);
         DEFAULTS.setProperty(POST_PROBLEM_HOOK, "");
         DEFAULTS.setProperty(PRE_PROBLEM_HOOK, "");
         DEFAULTS.setProperty(PROBLEM_CONVERTER, DEFAULT_PROBLEM_CONVERTER);
@@ -253,6 +439,10 @@ public class CPTermHost
         DEFAULTS.setProperty(TEST_CASE_PATH, "");
         DEFAULTS.setProperty(TEST_CASE_TEMP, DEFAULT_TEST_CASE_TEMP);
         DEFAULTS.setProperty(USE_COMMAND_SERVER, DEFAULT_USE_COMMAND_SERVER);
+        DEFAULTS.setProperty(WARM_UP_RENDERER, DEFAULT_WARM_UP_RENDERER);
+        DEFAULTS.setProperty(RENDER_CACHE_SIZE, DEFAULT_RENDER_CACHE_SIZE);
+        DEFAULTS.setProperty(IMAGE_CACHE_SIZE, DEFAULT_IMAGE_CACHE_SIZE);
+        DEFAULTS.setProperty(IMAGE_CACHE_TTL, DEFAULT_IMAGE_CACHE_TTL);
         try (InputStream is = CPTermHost.class.getClassLoader().getResourceAsStream("project.properties")) {
             DEFAULTS.load(is);
         } catch (IOException ignored) {
@@ -261,6 +451,31 @@ public class CPTermHost
     }
 
     private final Object asyncCommandLock = new Object();
+    /**
+     * Runs {@link NewProblem} handlers, one at a time in the order the problems were received.
+     */
+    private final ExecutorService problemExecutor = handlerExecutor("problem-handler");
+    /**
+     * Runs {@link RequestCode} handlers, one at a time in the order the requests were received.
+     */
+    private final ExecutorService codeExecutor = handlerExecutor("code-handler");
+    /**
+     * Runs {@link SetPrefs} handlers, one at a time in the order the preferences were received, and takes the
+     * {@link Settings} for each problem in the same order.
+     */
+    private final ExecutorService prefsExecutor = handlerExecutor("prefs-handler");
+    /**
+     * Renders problem statements, one at a time, alongside the problem handler setting up the code file.
+     */
+    private final ExecutorService renderExecutor = handlerExecutor("problem-renderer");
+    /**
+     * Renders the extra problem statement files, all at once, alongside the main one.
+     */
+    private final ExecutorService outputExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "problem-output");
+        t.setDaemon(true);
+        return t;
+    });
     /**
      * Problem code file.
      */
@@ -281,13 +496,18 @@ public class CPTermHost
     /**
      * Converter as set in properties.
      */
-    private Converter converter = Converter.OPEN_HTML_TO_PDF;
+    private volatile Converter converter = Converter.OPEN_HTML_TO_PDF;
     /**
-     * Used for opening files.
+     * Extra problem statement files as set in properties.
+     */
+    private volatile List<ProblemOutput> extraOutputs = Collections.emptyList();
+    /**
+     * Used for opening files.  Guarded by {@link #hasDesktop()}, since files are opened from the problem
+     * handler and the renderer.
      */
     private Desktop desktop;
     /**
-     * Whether an attempt was made at setting {@code desktop}.
+     * Whether an attempt was made at setting {@code desktop}.  Guarded like {@code desktop}.
      */
     private boolean desktopTried;
     /**
@@ -297,7 +517,7 @@ public class CPTermHost
     /**
      * Name of the current problem.
      */
-    private String problemName;
+    private volatile String problemName;
     /**
      * Running command server.
      */
@@ -306,10 +526,38 @@ public class CPTermHost
      * Currently waiting on a response from the extension.
      */
     private volatile WaitingFuture<? extends Message> awaiting;
+    /**
+     * Cache of rendered problems, or {@code null} if disabled.
+     */
+    private volatile RenderCache renderCache;
+    private volatile ImageCache imageCache;
+    /**
+     * Converters which were warmed up already.  Only used on the prefs executor.
+     */
+    private final Set<Converter> warmedUp = new HashSet<>();
+    private final MessageCodec codec;
+    /**
+     * Whether every message type was bound in the codec already.  Only used on the render executor.
+     */
+    private boolean codecBound;
+    /**
+     * Whether the handshake was timed already.
+     */
+    private boolean handshakeTimed;
+    /**
+     * Number of times the code file was found to have the code the extension has, so nothing was sent.
+     */
+    private final AtomicLong skippedSyncs = new AtomicLong();
 
     public CPTermHost()
     {
-        super(Message.class);
+        this(new MessageCodec());
+    }
+
+    private CPTermHost(MessageCodec codec)
+    {
+        super(codec);
+        this.codec = codec;
     }
 
     public static void run()
@@ -318,8 +566,155 @@ public class CPTermHost
         CPTermHost h = new CPTermHost();
 
         Runtime.getRuntime().addShutdownHook(new Thread(h::quit));
-        h.sendVersion();
         h.listen();
+        // the extension is gone, so don't wait on handlers or servers which might still be running
+        System.exit(0);
+    }
+
+    /**
+     * Run as a daemon which browsers reach through a shim, so that the host stays warm between sessions.
+     *
+     * @param infoFile file to advertise the daemon in
+     * @throws IOException if the daemon can't be started
+     */
+    public static void runDaemon(Path infoFile)
+    throws IOException
+    {
+        CPTermHost h = new CPTermHost();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(h::quit));
+        new NativeMessagingDaemon(h, infoFile, h.prop.getProperty("version")).serve();
+        System.exit(0);
+    }
+
+    /**
+     * Go through a typical session with a sample problem, without a browser, and exit.  Every message type the
+     * extension sends is read, the code file is watched and edited, and the problem is rendered with each
+     * built-in converter.  Used to record which classes a real session loads, such as for a class data sharing
+     * archive.
+     *
+     * @throws IOException if the sample problem can't be read
+     */
+    public static void train()
+    throws IOException
+    {
+        CPTermHost h = new CPTermHost();
+        String problem = readSampleProblem();
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode prefs = mapper.createObjectNode();
+        prefs.put("type", "setPrefs");
+        prefs.putObject("prefs")
+                .put(CODE_USE_TEMP_FILE, "true")
+                .put(PROBLEM_USE_TEMP_FILE, "true")
+                .put(EDITOR, "false")
+                .put(PROBLEM_VIEWER, "false")
+                .put(USE_COMMAND_SERVER, "false")
+                .put(RENDER_PROBLEM, "true")
+                .put(RELOAD_PROBLEM, "true")
+                .put(PROBLEM_CONVERTER, OPEN_HTML_TO_PDF);
+        ObjectNode newProblem = mapper.createObjectNode();
+        newProblem.put("type", "newProblem")
+                .put("problem", problem)
+                .put("code", "#include <cstdio>\n\nint main()\n{\n}")
+                .put("language", Languages.CPP)
+                .put("url", "https://example.com/problem")
+                .put("name", "Two Sum Queries");
+        ObjectNode testResults = mapper.createObjectNode();
+        testResults.put("type", "testResults");
+        testResults.putObject("cases").putObject("1")
+                .put("input", "3 2\n3 7 1\n10\n5")
+                .put("output", "YES\nYES")
+                .put("expected", "YES\nNO");
+        ObjectNode rawHtmlPrefs = mapper.createObjectNode();
+        rawHtmlPrefs.put("type", "setPrefs");
+        rawHtmlPrefs.putObject("prefs")
+                .put(PROBLEM_CONVERTER, RAW_HTML)
+                .put(RAW_HTML_SHOULD_RENDER_SVG, "true")
+                .put(EXTRA_PROBLEM_OUTPUTS, TEXT + ":.md")
+                .put(PROBLEM_FILE_SUFFIX, ".html");
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (ObjectNode m : new ObjectNode[]{prefs, newProblem, mapper.createObjectNode().put("type", "requestCode"),
+                testResults, rawHtmlPrefs, newProblem}) {
+            byte[] b = mapper.writeValueAsBytes(m);
+            for (int i = 0; i < 32; i += 8) {
+                frames.write(b.length >> i);
+            }
+            frames.write(b);
+        }
+        // read after every message above has been received, so finish the session before reporting the end
+        InputStream rest = new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                h.finishTraining();
+                return -1;
+            }
+        };
+
+        Path sink = Files.createTempFile("cpterm_", "_training");
+        try (FileChannel out = FileChannel.open(sink, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            h.listen(new SequenceInputStream(new ByteArrayInputStream(frames.toByteArray()), rest), out);
+        }
+        h.quit();
+        System.exit(0);
+    }
+
+    /**
+     * Wait for the problems of a training session to be started, then edit the code file as a user would.
+     */
+    private void finishTraining()
+    {
+        try {
+            problemExecutor.submit(() -> {
+            }).get();
+            codeFile.write("#include <cstdio>\n\nint main()\n{\n    puts(\"YES\");\n}");
+            codeExecutor.submit(() -> {
+            }).get();
+            Thread.sleep(TRAINING_WATCH_WAIT);
+        } catch (IOException | ExecutionException e) {
+            logger.error("Training failed", e);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Read the bundled sample problem.
+     *
+     * @return HTML of the problem
+     * @throws IOException if the problem can't be read
+     */
+    private static String readSampleProblem()
+    throws IOException
+    {
+        try (InputStream is = CPTermHost.class.getClassLoader().getResourceAsStream(SAMPLE_PROBLEM)) {
+            if (is == null) {
+                throw new IOException("Missing " + SAMPLE_PROBLEM);
+            }
+            return IOUtils.toString(is, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long millisSince(long nanoTime)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
+
+    /**
+     * Create an executor which runs message handlers one at a time on a daemon thread.
+     *
+     * @param name name of the thread
+     * @return new executor
+     */
+    private static ExecutorService handlerExecutor(String name)
+    {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     /**
@@ -362,7 +757,7 @@ public class CPTermHost
     }
 
     /**
-     * Apply new preferences.
+     * Apply new preferences.  Runs on the prefs executor.
      *
      * @param p pref key -> string representation of value
      */
@@ -370,23 +765,50 @@ public class CPTermHost
     {
         prop.putAll(p);
         if (Boolean.parseBoolean(prop.getProperty(RENDER_PROBLEM))) {
-            switch (prop.getProperty(PROBLEM_CONVERTER)) {
-                case OPEN_HTML_TO_PDF:
-                    converter = Converter.OPEN_HTML_TO_PDF;
-                    break;
-                case PANDOC:
-                    converter = configExternalConverter(Converter.PANDOC, PANDOC_PATH, PANDOC_ARGS);
-                    break;
-                case LIBREOFFICE:
-                    converter = configExternalConverter(Converter.LIBREOFFICE, LIBREOFFICE_PATH,
-                            LIBREOFFICE_ARGS);
-                    break;
-                case RAW_HTML:
-                    Converter.RAW_HTML.setRenderSvg(Boolean.parseBoolean(prop.getProperty(RAW_HTML_SHOULD_RENDER_SVG)));
-                    converter = Converter.RAW_HTML;
-                    break;
-                default:
-                    converter = null;
+            converter = configConverter(prop.getProperty(PROBLEM_CONVERTER));
+            extraOutputs = parseOutputs(prop.getProperty(EXTRA_PROBLEM_OUTPUTS));
+        }
+        try {
+            Watcher.setQuietPeriod(Long.parseLong(prop.getProperty(WATCH_QUIET_PERIOD)));
+        } catch (NumberFormatException e) {
+            Watcher.setQuietPeriod(Watcher.DEFAULT_QUIET_PERIOD);
+        }
+        long cacheSize;
+        try {
+            cacheSize = Long.parseLong(prop.getProperty(RENDER_CACHE_SIZE)) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            cacheSize = 0;
+        }
+        if (cacheSize <= 0) {
+            renderCache = null;
+        } else if (renderCache == null) {
+            renderCache = new RenderCache(RENDER_CACHE_DIR, prop.getProperty("version"), cacheSize);
+        } else {
+            renderCache.setMaxBytes(cacheSize);
+        }
+        long imageTtl;
+        try {
+            cacheSize = Long.parseLong(prop.getProperty(IMAGE_CACHE_SIZE)) * 1024 * 1024;
+            imageTtl = TimeUnit.HOURS.toMillis(Long.parseLong(prop.getProperty(IMAGE_CACHE_TTL)));
+        } catch (NumberFormatException e) {
+            cacheSize = 0;
+            imageTtl = 0;
+        }
+        if (cacheSize <= 0 || imageTtl <= 0) {
+            imageCache = null;
+        } else if (imageCache == null) {
+            imageCache = new ImageCache(IMAGE_CACHE_DIR, cacheSize, imageTtl);
+        } else {
+            imageCache.setMaxBytes(cacheSize);
+            imageCache.setTtlMillis(imageTtl);
+        }
+        Converter c = converter;
+        if (c != null) {
+            prepareConverter(c);
+        }
+        for (ProblemOutput o : extraOutputs) {
+            if (o.converter != c) {
+                prepareConverter(o.converter);
             }
         }
         if (messageServer == null && Boolean.parseBoolean(prop.getProperty(USE_COMMAND_SERVER))) {
@@ -399,6 +821,134 @@ public class CPTermHost
         }
     }
 
+    /**
+     * Configure a problem converter according to preferences.
+     *
+     * @param name preferences value naming the converter
+     * @return converter, or {@code null} if it's unknown or improperly configured
+     */
+    private Converter configConverter(String name)
+    {
+        switch (name) {
+            case OPEN_HTML_TO_PDF:
+                Converter.OPEN_HTML_TO_PDF.setFonts(prop.getProperty(PDF_FONTS));
+                Converter.OPEN_HTML_TO_PDF.setOptimize(Boolean.parseBoolean(prop.getProperty(OPTIMIZE_PDF)));
+                return Converter.OPEN_HTML_TO_PDF;
+            case PANDOC:
+                Converter.PANDOC.setServer(Boolean.parseBoolean(prop.getProperty(PANDOC_SERVER)));
+                Converter.PANDOC.setTexSymbols(prop.getProperty(PANDOC_TEX_SYMBOLS));
+                return configExternalConverter(Converter.PANDOC, PANDOC_PATH, PANDOC_ARGS);
+            case LIBREOFFICE:
+                Converter.LIBREOFFICE.setWorker(Boolean.parseBoolean(prop.getProperty(LIBREOFFICE_WORKER))
+                        ? LIBREOFFICE_PROFILE : null);
+                return configExternalConverter(Converter.LIBREOFFICE, LIBREOFFICE_PATH, LIBREOFFICE_ARGS);
+            case RAW_HTML:
+                Converter.RAW_HTML.setRenderSvg(Boolean.parseBoolean(prop.getProperty(RAW_HTML_SHOULD_RENDER_SVG)));
+                return Converter.RAW_HTML;
+            case TEXT:
+                return Converter.TEXT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parse the extra problem statement files.  Entries which don't name a usable converter are reported and
+     * left out.
+     *
+     * @param s comma-separated pairs of a converter and a file suffix, separated by a colon
+     * @return extra problem statement files
+     */
+    private List<ProblemOutput> parseOutputs(String s)
+    {
+        ArrayList<ProblemOutput> outputs = new ArrayList<>(0);
+        for (String entry : s.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            Converter c = colon > 0 ? configConverter(entry.substring(0, colon).trim()) : null;
+            String suffix = colon > 0 ? entry.substring(colon + 1).trim() : "";
+            if (c == null || suffix.isEmpty()) {
+                err("Invalid extra problem statement file: " + entry, null);
+            } else {
+                outputs.add(new ProblemOutput(c, suffix));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Get a configured converter ready for use: size the pool of an external converter, and warm up the
+     * converter in the background if enabled.
+     *
+     * @param c converter
+     */
+    private void prepareConverter(Converter c)
+    {
+        if (!(c instanceof ExternalConverter) && Boolean.parseBoolean(prop.getProperty(WARM_UP_RENDERER))
+                && warmedUp.add(c)) {
+            renderExecutor.execute(() -> warmUp(c));
+        } else if (c instanceof ExternalConverter) {
+            ExternalConverter ec = (ExternalConverter) c;
+            ec.setPool((int) longPref(CONVERTER_WORKERS), (int) longPref(CONVERTER_QUEUE),
+                    (int) longPref(CONVERTER_MAX_JOBS), TimeUnit.SECONDS.toMillis(longPref(CONVERTER_TIMEOUT)),
+                    TimeUnit.MINUTES.toMillis(longPref(CONVERTER_IDLE_TIMEOUT)));
+            if (Boolean.parseBoolean(prop.getProperty(WARM_UP_RENDERER))) {
+                renderExecutor.execute(ec::startWorkers);
+            }
+        }
+    }
+
+    /**
+     * Parse a numeric preference, falling back to its default if it's not a number.
+     *
+     * @param key preferences key
+     * @return value
+     */
+    private long longPref(String key)
+    {
+        try {
+            return Long.parseLong(prop.getProperty(key));
+        } catch (NumberFormatException e) {
+            return Long.parseLong(DEFAULTS.getProperty(key));
+        }
+    }
+
+    /**
+     * Get the message codec and a converter ready for their first real use by exercising them on the sample
+     * problem.  Runs on the render executor, so a problem received in the meantime waits for this instead of
+     * setting up the same things at the same time.
+     *
+     * @param c converter to warm up
+     */
+    private void warmUp(Converter c)
+    {
+        long start = System.nanoTime();
+        if (!codecBound) {
+            codecBound = true;
+            codec.bindAll();
+            logger.info("Bound message codec in {} ms", millisSince(start));
+            start = System.nanoTime();
+        }
+        Path out = null;
+        try {
+            out = Files.createTempFile("cpterm_", "_warmup");
+            c.convert(readSampleProblem(), "https://example.com/problem", out);
+            logger.info("Warmed up {} in {} ms", c.getClass().getSimpleName(), millisSince(start));
+        } catch (IOException | ConversionException e) {
+            logger.warn("Could not warm up converter", e);
+        } finally {
+            if (out != null) {
+                try {
+                    Files.deleteIfExists(out);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
     /**
      * Set the parameters for an {@link ExternalConverter}.
      *
@@ -427,13 +977,17 @@ public class CPTermHost
 
     /**
      * Run the pre-problem hook, blocking until it exits.
+     *
+     * @param s settings of the problem
      */
-    private void preProblemHook()
+    private void preProblemHook(Settings s)
     {
-        String preHook = prop.getProperty(PRE_PROBLEM_HOOK);
+        String preHook = s.prop.getProperty(PRE_PROBLEM_HOOK);
         if (!preHook.isEmpty()) {
             try {
+                long start = System.nanoTime();
                 new ProcessBuilder(preHook).start().waitFor();
+                logger.info("Ran pre-problem hook in {} ms", millisSince(start));
             } catch (IOException | InterruptedException e) {
                 err("Failed to run hook", e);
             }
@@ -441,65 +995,148 @@ public class CPTermHost
     }
 
     /**
-     * Render the problem statement to a file, if it hasn't already been rendered.
+     * Render the problem statement to a file, if it hasn't already been rendered.  The extra problem statement
+     * files are rendered at the same time from the same parsed problem, and a failure to render one of them
+     * doesn't affect the others.  Returns once all of them are done.
      *
      * @param np problem
+     * @param s  settings of the problem
      * @return path to problem statement file
      */
-    private Path renderProblem(NewProblem np)
+    private Path renderProblem(NewProblem np, Settings s)
     {
-        boolean reload = Boolean.parseBoolean(prop.getProperty(RELOAD_PROBLEM));
+        boolean reload = Boolean.parseBoolean(s.prop.getProperty(RELOAD_PROBLEM));
         String url = np.getUrl();
-        if (Boolean.parseBoolean(prop.getProperty(RENDER_PROBLEM)) &&
+        if (Boolean.parseBoolean(s.prop.getProperty(RENDER_PROBLEM)) &&
                 (reload || !url.equals(lastProblemUrl))) {
+            String name = problemName;
+            String suffix = s.prop.getProperty(PROBLEM_FILE_SUFFIX);
             Path pp;
             try {
-                pp = problemFile.create(problemName, problemName + prop.getProperty(PROBLEM_FILE_SUFFIX));
+                pp = problemFile.create(s.prop, name, name + suffix);
             } catch (IOException e) {
                 err("Failed to create problem file", e);
                 return null;
             }
-            if (problemFile.isTemp() || reload || !problemFile.exists()) {
+            boolean temp = problemFile.isTemp();
+            ProblemDocument problem = new ProblemDocument(np.getProblem(), url, s.imageCache);
+            ArrayList<Future<?>> pending = new ArrayList<>(s.extraOutputs.size());
+            for (ProblemOutput o : s.extraOutputs) {
+                pending.add(outputExecutor.submit(() -> renderExtra(o, problem, name, pp, temp, reload,
+                        s.renderCache)));
+            }
+
+            boolean rendered = !(temp || reload || !problemFile.exists())
+                    || renderTo(s.converter, suffix, problem, pp, temp, s.renderCache);
+            if (rendered) {
+                problemFile.open(s.prop);
+            }
+            for (Future<?> f : pending) {
                 try {
-                    converter.convert(np.getProblem(), url, pp.toAbsolutePath());
-                } catch (ConversionException e) {
-                    try {
-                        send(new LogEntry("error", "Conversion error\n" + e.getMessage()));
-                    } catch (IOException ignored) {
-                    }
-                    return null;
+                    f.get();
+                } catch (ExecutionException e) {
+                    err("Failed to render extra problem statement file", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
-            problemFile.open();
-            return pp;
+            problem.releaseImages();
+            return rendered ? pp : null;
         }
         lastProblemUrl = url;
         return null;
     }
 
+    /**
+     * Render an extra problem statement file next to the main one, unless it exists and problems aren't
+     * reloaded.
+     *
+     * @param o       extra file
+     * @param problem problem statement
+     * @param name    sanitized name of the problem
+     * @param pp      path to the main problem statement file
+     * @param temp    whether the problem statement files are temporary
+     * @param reload  whether existing problem statement files are rendered again
+     * @param cache   render cache, or {@code null} if disabled
+     */
+    private void renderExtra(ProblemOutput o, ProblemDocument problem, String name, Path pp, boolean temp,
+                             boolean reload, RenderCache cache)
+    {
+        Path out;
+        try {
+            out = temp ? createScratchFile(name + o.suffix) : pp.resolveSibling(name + o.suffix);
+        } catch (IOException e) {
+            err("Failed to create extra problem statement file", e);
+            return;
+        }
+        if (out.equals(pp)) {
+            err("Extra problem statement file " + out + " is the main problem statement file", null);
+        } else if (temp || reload || !Files.exists(out)) {
+            renderTo(o.converter, o.suffix, problem, out, temp, cache);
+        }
+    }
+
+    /**
+     * Render the problem statement to a file, taking it from the render cache if it was rendered before.
+     *
+     * @param c       converter
+     * @param suffix  file suffix, which may determine the output type
+     * @param problem problem statement
+     * @param out     file to render to
+     * @param temp    whether the file is temporary
+     * @param cache   render cache, or {@code null} if disabled
+     * @return {@code true} if the file was rendered
+     */
+    private boolean renderTo(Converter c, String suffix, ProblemDocument problem, Path out, boolean temp,
+                             RenderCache cache)
+    {
+        String key = cache == null ? null
+                : cache.key(c, problem.getOuterHtml(), problem.getBaseUri(), suffix);
+        // temp files are only viewed, so they can share the cached copy
+        if (key == null || !cache.materialize(key, out, temp)) {
+            try {
+                long start = System.nanoTime();
+                c.convert(problem, out.toAbsolutePath());
+                logger.info("Rendered {} in {} ms", out.getFileName(), millisSince(start));
+            } catch (ConversionException e) {
+                try {
+                    send(new LogEntry("error", "Conversion error\n" + e.getMessage()));
+                } catch (IOException ignored) {
+                }
+                return false;
+            }
+            if (key != null) {
+                cache.store(key, out);
+            }
+        }
+        return true;
+    }
+
     /**
      * Save the code for this problem to a file, or retrieve old code.
      *
      * @param np problem
+     * @param s  settings of the problem
      * @return path to code file
      */
-    private Path saveCode(NewProblem np)
+    private Path saveCode(NewProblem np, Settings s)
     {
+        long start = System.nanoTime();
         String code = np.getCode();
         try {
-            Path cp = codeFile.create(problemName, problemName + '.' + Languages.getExt(np.getLanguage()));
+            Path cp = codeFile.create(s.prop, problemName, problemName + '.' + Languages.getExt(np.getLanguage()));
             if (!codeFile.isTemp() && codeFile.exists()) {
-                String existing = codeFile.read();
-                if (!existing.equals(code)) {
-                    send(new SetCode(existing));
-                }
+                codeFile.sync(code);
             } else {
                 codeFile.write(code);
+                codeFile.setSynced(code);
             }
             codeFile.startWatching();
-            codeFile.open();
+            codeFile.open(s.prop);
+            logger.info("Opened code file in {} ms", millisSince(start));
             return cp;
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             err("Failed to create and start watcher for code file", e);
         }
         return null;
@@ -508,12 +1145,13 @@ public class CPTermHost
     /**
      * Run the post-problem hook.  Do not block.
      *
+     * @param s  settings of the problem
      * @param cp path to code file
      * @param pp path to problem file
      */
-    private void postProblemHook(Path cp, Path pp)
+    private void postProblemHook(Settings s, Path cp, Path pp)
     {
-        String postHook = prop.getProperty(POST_PROBLEM_HOOK);
+        String postHook = s.prop.getProperty(POST_PROBLEM_HOOK);
         if (!postHook.isEmpty()) {
             try {
                 new ProcessBuilder(postHook, cp == null ? "" : cp.toAbsolutePath().toString(),
@@ -525,19 +1163,51 @@ public class CPTermHost
     }
 
     /**
-     * A new problem was received, so create the files, open them, and listen for changes.
+     * A new problem was received, so create the files, open them, and listen for changes.  The problem statement
+     * is rendered on the render executor while the code file is set up, so the code file can be edited without
+     * waiting for the conversion.  Each file is opened as soon as it's ready, and the post-problem hook is run
+     * once both are.  Returns after that, so problems are still started one at a time.
+     *
+     * @param np       problem
+     * @param settings settings taken when the problem was received, once the preferences received before it were
+     *                 applied
      */
-    public void startProblem(NewProblem np)
+    private void startProblem(NewProblem np, Future<Settings> settings)
     {
-        if (converter == null) {
+        Settings s;
+        try {
+            s = settings.get();
+        } catch (ExecutionException e) {
+            err("Failed to apply preferences", e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (s.converter == null) {
             err("Problem converter is improperly configured", null);
-            logger.info("Problem converter is set to {}", prop.getProperty(PROBLEM_CONVERTER));
+            logger.info("Problem converter is set to {}", s.prop.getProperty(PROBLEM_CONVERTER));
             return;
         }
+        long start = System.nanoTime();
         codeFile.stopWatching();
         problemName = sanitizeFileName(np.getName());
-        preProblemHook();
-        postProblemHook(renderProblem(np), saveCode(np));
+        preProblemHook(s);
+        CompletableFuture<Path> problem = CompletableFuture.supplyAsync(() -> {
+            Path pp = renderProblem(np, s);
+            logger.info("Problem statement ready {} ms after the problem was received", millisSince(start));
+            return pp;
+        }, renderExecutor);
+        Path cp = saveCode(np, s);
+        logger.info("Code file ready {} ms after the problem was received", millisSince(start));
+        Path pp;
+        try {
+            pp = problem.join();
+        } catch (CompletionException e) {
+            err("Failed to render problem", e.getCause());
+            pp = null;
+        }
+        postProblemHook(s, cp, pp);
     }
 
     /**
@@ -546,7 +1216,14 @@ public class CPTermHost
     public void quit()
     {
         logger.info("Quitting gracefully");
+        problemExecutor.shutdownNow();
+        prefsExecutor.shutdownNow();
+        renderExecutor.shutdownNow();
+        outputExecutor.shutdownNow();
+        codeExecutor.shutdownNow();
         codeFile.stopWatching();
+        Converter.PANDOC.stopWorkers();
+        Converter.LIBREOFFICE.stopWorkers();
 
         if (messageServer != null) {
             messageServer.stop();
@@ -573,7 +1250,7 @@ public class CPTermHost
      *
      * @return {@code true} if {@link Desktop} can be used, {@code false} otherwise
      */
-    private boolean hasDesktop()
+    private synchronized boolean hasDesktop()
     {
         if (!desktopTried) {
             desktopTried = true;
@@ -589,6 +1266,18 @@ public class CPTermHost
         } else return desktop != null;
     }
 
+    @Override
+    protected void connected()
+    {
+        sendVersion();
+        if (!handshakeTimed) {
+            handshakeTimed = true;
+            long handshake = millisSince(LOADED);
+            problemExecutor.execute(() -> logger.info("Answered handshake {} ms after the host was loaded",
+                    handshake));
+        }
+    }
+
     /**
      * Send the version of this host to the extension.
      */
@@ -618,14 +1307,25 @@ public class CPTermHost
         }
     }
 
+    /**
+     * Route a message to its handler.  Responses to commands complete their {@link WaitingFuture} right away.
+     * Everything else is handed off to an executor for its message type, so that reading the next message never
+     * waits on a problem being rendered or on preferences which read files and start converters.  Preferences
+     * are applied on their own executor, so they never wait on a problem either.  Each problem takes its
+     * {@link Settings} on that executor too, so it sees the preferences received before it, and none received
+     * after it.
+     */
     @Override
     public boolean received(Message message)
     {
         if (offerAwaiting(message)) {
             if (message instanceof NewProblem) {
-                startProblem((NewProblem) message);
+                Future<Settings> settings = prefsExecutor.submit(Settings::new);
+                problemExecutor.execute(() -> startProblem((NewProblem) message, settings));
             } else if (message instanceof SetPrefs) {
-                setPrefs(((SetPrefs) message).getPrefs());
+                prefsExecutor.execute(() -> setPrefs(((SetPrefs) message).getPrefs()));
+            } else if (message instanceof RequestCode) {
+                codeExecutor.execute(codeFile::resync);
             }
         }
         return true;
@@ -774,10 +1474,55 @@ public class CPTermHost
                 if (sendAsyncCommand(in, f)) {
                     saveTestCases(f, out);
                 }
+            } else if (STATS.equals(in)) {
+                Converter c = converter;
+                out.println(c instanceof ExternalConverter ? ((ExternalConverter) c).getStats().toString()
+                        : "No external converter is in use");
+                RenderCache rc = renderCache;
+                out.println(rc == null ? "Render cache is disabled"
+                        : "Render cache: " + rc.getHits() + " hits, " + rc.getMisses() + " misses");
+                ImageCache ic = imageCache;
+                out.println(ic == null ? "Image cache is disabled"
+                        : "Image cache: " + ic.getHits() + " hits, " + ic.getMisses() + " misses");
+                out.println("File watcher: " + Watcher.getCoalescedEvents() + " events coalesced");
+                out.println("Code sync: " + skippedSyncs.get() + " unchanged sends skipped");
             }
         }
     }
 
+    /**
+     * Preferences as they were when a problem was received, so that preferences applied while the problem is
+     * handled don't change it halfway.  Taken on the prefs executor.
+     */
+    private class Settings
+    {
+        private final Properties prop = new Properties(DEFAULTS);
+        private final Converter converter = CPTermHost.this.converter;
+        private final List<ProblemOutput> extraOutputs = CPTermHost.this.extraOutputs;
+        private final RenderCache renderCache = CPTermHost.this.renderCache;
+        private final ImageCache imageCache = CPTermHost.this.imageCache;
+
+        private Settings()
+        {
+            prop.putAll(CPTermHost.this.prop);
+        }
+    }
+
+    /**
+     * An extra problem statement file.
+     */
+    private static class ProblemOutput
+    {
+        private final Converter converter;
+        private final String suffix;
+
+        private ProblemOutput(Converter converter, String suffix)
+        {
+            this.converter = converter;
+            this.suffix = suffix;
+        }
+    }
+
     private class ScratchFile
     {
         private final String tempKey;
@@ -826,30 +1571,33 @@ public class CPTermHost
         /**
          * Create a blank scratch file according to preferences set by the user.
          *
+         * @param p      preferences of the problem
          * @param name   name of directory to create, if enabled
          * @param suffix should be appended to the file name
          * @return path to file
          * @throws IOException if there was a problem creating a temp file
          */
-        protected Path create(String name, String suffix)
+        protected Path create(Properties p, String name, String suffix)
         throws IOException
         {
-            temp = Boolean.parseBoolean(prop.getProperty(tempKey));
+            temp = Boolean.parseBoolean(p.getProperty(tempKey));
             if (temp) {
                 return path = createScratchFile(suffix);
             } else {
-                return path = getScratchFile(Boolean.parseBoolean(prop.getProperty(createDirKey))
-                        ? Paths.get(prop.getProperty(pathKey), name)
-                        : Paths.get(prop.getProperty(pathKey)), suffix);
+                return path = getScratchFile(Boolean.parseBoolean(p.getProperty(createDirKey))
+                        ? Paths.get(p.getProperty(pathKey), name)
+                        : Paths.get(p.getProperty(pathKey)), suffix);
             }
         }
 
         /**
-         * Open the file with its handler as defined in {@link #prop}.  Use {@link Desktop} if no handler is set.
+         * Open the file with its handler as defined in the preferences.  Use {@link Desktop} if no handler is set.
+         *
+         * @param p preferences of the problem
          */
-        protected void open()
+        protected void open(Properties p)
         {
-            if (Boolean.parseBoolean(prop.getProperty(openFileKey)) && hasDesktop()) {
+            if (Boolean.parseBoolean(p.getProperty(openFileKey)) && hasDesktop()) {
                 try {
                     desktop.open(path.toFile());
                 } catch (IOException | IllegalArgumentException | UnsupportedOperationException e) {
@@ -864,6 +1612,10 @@ public class CPTermHost
     {
         private File file;
         private Watcher watcher;
+        /**
+         * Code which the extension is known to have, or {@code null} if unknown.
+         */
+        private String synced;
 
         protected CodeFile()
         {
@@ -871,14 +1623,70 @@ public class CPTermHost
         }
 
         @Override
-        protected Path create(String name, String suffix)
+        protected Path create(Properties prefs, String name, String suffix)
         throws IOException
         {
-            Path p = super.create(name, suffix);
+            Path p = super.create(prefs, name, suffix);
             file = p.toFile();
+            setSynced(null);
             return p;
         }
 
+        /**
+         * Record the code which the extension has.
+         *
+         * @param code code in the extension, or {@code null} if unknown
+         */
+        protected synchronized void setSynced(String code)
+        {
+            synced = code;
+        }
+
+        /**
+         * Send the code in the file to the extension.  If the code the extension has is known, only the changes
+         * are sent, and nothing is sent if it's the same as the file's, as after a save without changes or after
+         * the host writes the file itself; otherwise, the whole code is sent.
+         *
+         * @param base code the extension has, or {@code null} to use the last synced code
+         */
+        protected synchronized void sync(String base)
+        {
+            if (file == null) {
+                return;
+            }
+            String code;
+            try {
+                code = read();
+            } catch (IOException e) {
+                err("Could not read file", e);
+                return;
+            }
+            if (base != null) {
+                synced = base;
+            }
+            if (code.equals(synced)) {
+                logger.debug("Code unchanged, not sending it ({} sends skipped)", skippedSyncs.incrementAndGet());
+                return;
+            }
+            Message m = synced == null ? new SetCode(code) : SetCodeDelta.between(synced, code);
+            try {
+                send(m);
+                synced = code;
+            } catch (IOException e) {
+                synced = null;
+                logger.error("Could not send code file", e);
+            }
+        }
+
+        /**
+         * Send the whole code in the file to the extension.
+         */
+        protected synchronized void resync()
+        {
+            synced = null;
+            sync(null);
+        }
+
         /**
          * Write the code to the file.
          *
@@ -906,25 +1714,14 @@ public class CPTermHost
         }
 
         protected void startWatching()
-        throws IOException, InterruptedException
+        throws IOException
         {
             (watcher = new Watcher(path)
             {
                 @Override
                 protected void modified()
                 {
-                    String lines;
-                    try {
-                        lines = read();
-                    } catch (IOException e) {
-                        err("Could not read file", e);
-                        return;
-                    }
-                    try {
-                        send(new SetCode(lines));
-                    } catch (IOException e) {
-                        logger.error("Could not send code file", e);
-                    }
+                    sync(null);
                 }
             }).start();
         }
@@ -24,7 +24,9 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
         @JsonSubTypes.Type(value = Command.class, name = "command"),
         @JsonSubTypes.Type(value = LogEntry.class, name = "logEntry"),
         @JsonSubTypes.Type(value = NewProblem.class, name = "newProblem"),
+        @JsonSubTypes.Type(value = RequestCode.class, name = "requestCode"),
         @JsonSubTypes.Type(value = SetCode.class, name = "setCode"),
+        @JsonSubTypes.Type(value = SetCodeDelta.class, name = "setCodeDelta"),
         @JsonSubTypes.Type(value = SetPrefs.class, name = "setPrefs"),
         @JsonSubTypes.Type(value = TestResults.class, name = "testResults"),
         @JsonSubTypes.Type(value = Version.class, name = "version")
@@ -0,0 +1,182 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.host.message;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.github.thomashuss.cpterm.ext.Codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes and decodes {@link Message}s as JSON using readers and writers which are bound to each subtype
+ * the first time it's used, or all at once by {@link #bindAll()}.  Binding resolves every (de)serializer the
+ * subtype needs, so only the subtypes which are used are bound before the first message.  Data binding itself
+ * is only set up when it's first needed.  A message is decoded by finding its {@code type} property and handing it to the subtype's
+ * reader, which skips polymorphic type resolution entirely.  Firefox keeps the property first, as the
+ * extension writes it, so the rest of the object is read in the same pass; Chrome sorts properties by name,
+ * so the type is found by skimming the top-level properties without decoding them, then the message is
+ * read again.  Messages without a known type are decoded through {@link Message}.
+ */
+public final class MessageCodec
+        implements Codec<Message>
+{
+    private static final String TYPE = "type";
+    private final JsonFactory factory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    /**
+     * Type ID -> subtype.
+     */
+    private final Map<String, Class<?>> types = new HashMap<>();
+    /**
+     * Type ID -> reader for the subtype, which expects the type ID to have been consumed already.
+     */
+    private final ConcurrentMap<String, ObjectReader> readers = new ConcurrentHashMap<>();
+    /**
+     * Subtype -> writer which includes the type ID.
+     */
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+    private volatile ObjectReader baseReader;
+    private volatile Mappers mappers;
+
+    public MessageCodec()
+    {
+        for (JsonSubTypes.Type t : Message.class.getAnnotation(JsonSubTypes.class).value()) {
+            types.put(t.name(), t.value());
+        }
+    }
+
+    private Mappers mappers()
+    {
+        Mappers m = mappers;
+        if (m == null) {
+            synchronized (this) {
+                if ((m = mappers) == null) {
+                    mappers = m = new Mappers();
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Bind the readers and writers for every subtype now, rather than when each is first used.
+     */
+    public void bindAll()
+    {
+        for (Map.Entry<String, Class<?>> e : types.entrySet()) {
+            readerFor(e.getKey());
+            writerFor(e.getValue());
+        }
+    }
+
+    /**
+     * @param type type ID
+     * @return reader for the subtype, or {@code null} if the type is unknown
+     */
+    private ObjectReader readerFor(String type)
+    {
+        ObjectReader r = readers.get(type);
+        if (r == null && type != null) {
+            Class<?> c = types.get(type);
+            if (c != null) {
+                r = readers.computeIfAbsent(type, k -> mappers().untyped.readerFor(c));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param c message class
+     * @return writer for the class, falling back to one for {@link Message} if it's not a known subtype
+     */
+    private ObjectWriter writerFor(Class<?> c)
+    {
+        ObjectWriter w = writers.get(c);
+        if (w == null) {
+            w = writers.computeIfAbsent(c, k -> mappers().mapper.writerFor(types.containsValue(k) ? k : Message.class));
+        }
+        return w;
+    }
+
+    @Override
+    public Message decode(byte[] buf, int offset, int length)
+    throws IOException
+    {
+        try (JsonParser p = factory.createParser(buf, offset, length)) {
+            if (p.nextToken() == JsonToken.START_OBJECT) {
+                boolean first = true;
+                String field;
+                while ((field = p.nextFieldName()) != null) {
+                    if (TYPE.equals(field)) {
+                        ObjectReader r = readerFor(p.nextTextValue());
+                        if (r == null) {
+                            break;
+                        }
+                        if (first && p.nextToken() == JsonToken.FIELD_NAME) {
+                            return r.readValue(p);
+                        }
+                        return r.readValue(buf, offset, length);
+                    }
+                    first = false;
+                    p.nextToken();
+                    p.skipChildren();
+                }
+            }
+        }
+        ObjectReader r = baseReader;
+        if (r == null) {
+            baseReader = r = mappers().mapper.readerFor(Message.class);
+        }
+        return r.readValue(buf, offset, length);
+    }
+
+    @Override
+    public void encode(Message message, OutputStream out)
+    throws IOException
+    {
+        writerFor(message.getClass()).writeValue(out, message);
+    }
+
+    private static final class Mappers
+    {
+        private final ObjectMapper mapper = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        private final ObjectMapper untyped = new ObjectMapper().addMixIn(Message.class, Untyped.class);
+    }
+
+    /**
+     * Mix-in which strips the type information from {@link Message}, for reading a subtype whose type ID was
+     * already found.
+     */
+    @JsonTypeInfo(use = JsonTypeInfo.Id.NONE)
+    @JsonIgnoreProperties(TYPE)
+    private static abstract class Untyped
+    {
+    }
+}
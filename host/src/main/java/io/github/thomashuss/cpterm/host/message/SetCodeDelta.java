@@ -0,0 +1,115 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.host.message;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Changes to the code in the extension's editor, expressed as replacements of ranges of the code which was
+ * last synced.  Offsets count UTF-16 code units, as in both Java and JavaScript strings.
+ */
+public final class SetCodeDelta
+        extends Message
+{
+    @JsonProperty()
+    private final int baseHash;
+    @JsonProperty()
+    private final int hash;
+    @JsonProperty()
+    private final List<Edit> edits;
+
+    public SetCodeDelta(int baseHash, int hash, List<Edit> edits)
+    {
+        this.baseHash = baseHash;
+        this.hash = hash;
+        this.edits = edits;
+    }
+
+    /**
+     * Compute the delta which turns {@code base} into {@code code}.
+     *
+     * @param base code which was last synced
+     * @param code new code
+     * @return delta, or {@code null} if the code is unchanged
+     */
+    public static SetCodeDelta between(String base, String code)
+    {
+        int baseLen = base.length();
+        int codeLen = code.length();
+        int max = Math.min(baseLen, codeLen);
+        int prefix = 0;
+        while (prefix < max && base.charAt(prefix) == code.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix == baseLen && prefix == codeLen) {
+            return null;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(base.charAt(prefix - 1))) {
+            prefix--;
+        }
+        max -= prefix;
+        int suffix = 0;
+        while (suffix < max && base.charAt(baseLen - suffix - 1) == code.charAt(codeLen - suffix - 1)) {
+            suffix++;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(base.charAt(baseLen - suffix))) {
+            suffix--;
+        }
+        return new SetCodeDelta(hash(base), hash(code), Collections.singletonList(
+                new Edit(prefix, baseLen - suffix, code.substring(prefix, codeLen - suffix))));
+    }
+
+    /**
+     * Compute the 32-bit FNV-1a hash of the UTF-16 code units of a string.  The extension computes the
+     * same hash to check that its code matches the base of a delta.
+     *
+     * @param s string to hash
+     * @return hash
+     */
+    public static int hash(String s)
+    {
+        int h = 0x811c9dc5;
+        for (int i = 0, len = s.length(); i < len; i++) {
+            h ^= s.charAt(i);
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Replacement of the range {@code [start, end)} with {@code text}.
+     */
+    public static final class Edit
+    {
+        @JsonProperty()
+        private final int start;
+        @JsonProperty()
+        private final int end;
+        @JsonProperty()
+        private final String text;
+
+        public Edit(int start, int end, String text)
+        {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+    }
+}
@@ -12,4 +12,9 @@ public final class Version
     {
         this.hostVersion = hostVersion;
     }
+
+    public String getHostVersion()
+    {
+        return hostVersion;
+    }
 }
@@ -28,6 +28,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -45,7 +46,12 @@ public class Installer
     private static final String CHROME_EXT_ID = "chrome-extension://pfkaacnmmafpmdogookjkmdhepkabbkd/";
     private static final String FIREFOX_REG_KEY = "HKCU\\Software\\Mozilla\\NativeMessagingHosts\\" + MANIFEST_NAME;
     private static final String CHROME_REG_KEY = "HKCU\\Software\\Google\\Chrome\\NativeMessagingHosts\\" + MANIFEST_NAME;
-    private static final String JAVA_OPTS = "java -jar";
+    private static final String JAVA = "java";
+    private static final String ARCHIVE_NAME = "cpterm-host.jsa";
+    /**
+     * Arguments which make the launcher forward to a long-running host instead of being the host.
+     */
+    private static final String SHIM_ARGS = "--shim";
     private static final String HOME = System.getProperty("user.home");
     private static final ObjectMapper mapper = new ObjectMapper();
     private static final Path JAR;
@@ -76,11 +82,14 @@ public class Installer
     }
 
     private final Path dir;
+    private final boolean persistent;
     private final Installation installation = new Installation();
+    private List<String> javaOpts = Collections.emptyList();
 
-    private Installer(Path dir)
+    private Installer(Path dir, boolean persistent)
     {
         this.dir = dir;
+        this.persistent = persistent;
     }
 
     private static Path getJar()
@@ -148,9 +157,10 @@ public class Installer
 
     private static void printInstallUsage()
     {
-        System.out.println("usage: java -jar cpterm.jar --install -b BROWSER [-b BROWSER...] [-d DIRECTORY]");
+        System.out.println("usage: java -jar cpterm.jar --install -b BROWSER [-b BROWSER...] [-d DIRECTORY] [-p]");
         System.out.println("where BROWSER is one of `firefox', `chrome', or `chromium'" +
                 " and DIRECTORY is the install directory (set to default if not specified)");
+        System.out.println("-p keeps the host running in the background between browser sessions");
     }
 
     public static void installCLI(List<String> args)
@@ -163,6 +173,7 @@ public class Installer
         Iterator<String> it = args.iterator();
         ArrayList<Browser> browsers = new ArrayList<>(Math.max(1, args.size() / 2));
         Path dir = null;
+        boolean persistent = false;
         while (it.hasNext()) {
             String s = it.next();
             if (it.hasNext() && "-b".equals(s)) {
@@ -179,6 +190,8 @@ public class Installer
                 }
             } else if (it.hasNext() && "-d".equals(s)) {
                 dir = Paths.get(it.next());
+            } else if ("-p".equals(s)) {
+                persistent = true;
             } else {
                 printInstallUsage();
                 return;
@@ -187,7 +200,8 @@ public class Installer
         if (dir == null) {
             dir = getDefaultDir();
         }
-        install(dir, browsers);
+        System.out.println("training the host to speed up its startup; this takes a few seconds...");
+        System.out.println(install(dir, browsers, persistent));
         System.out.println("done");
     }
 
@@ -206,10 +220,23 @@ public class Installer
         }
     }
 
-    public static void install(Path dir, List<Browser> browsers)
+    /**
+     * Install the host for the given browsers.
+     *
+     * @return how the host's startup was tuned, for the user
+     */
+    public static String install(Path dir, List<Browser> browsers, boolean persistent)
     throws IOException
     {
-        new Installer(dir).installFor(browsers);
+        return new Installer(dir, persistent).installFor(browsers);
+    }
+
+    /**
+     * Quote a string for a POSIX shell.
+     */
+    private static String shQuote(String s)
+    {
+        return '\'' + s.replace("'", "'\"'\"'") + '\'';
     }
 
     private void putWinReg(String key, String value)
@@ -295,10 +322,20 @@ public class Installer
             binFile = bin.toFile();
             try (PrintWriter pw = new PrintWriter(binFile)) {
                 pw.println("@echo off");
-                pw.print(JAVA_OPTS);
-                pw.print(" \"%~dp0/");
+                pw.print(JAVA);
+                for (String opt : javaOpts) {
+                    pw.print(" \"");
+                    pw.print(opt);
+                    pw.print('"');
+                }
+                pw.print(" -jar \"%~dp0/");
                 pw.print(jar.getFileName());
-                pw.println("\" %*");
+                pw.print('"');
+                if (persistent) {
+                    pw.print(' ');
+                    pw.print(SHIM_ARGS);
+                }
+                pw.println(" %*");
             }
         } else {
             bin = dir.resolve("cpterm-host");
@@ -306,10 +343,18 @@ public class Installer
             try (PrintWriter pw = new PrintWriter(binFile)) {
                 pw.println("#!/bin/sh");
                 pw.print("exec ");
-                pw.print(JAVA_OPTS);
-                pw.print(" '");
-                pw.print(jar.toAbsolutePath().toString().replace("'", "'\"'\"'"));
-                pw.println("' \"$@\"");
+                pw.print(JAVA);
+                for (String opt : javaOpts) {
+                    pw.print(' ');
+                    pw.print(shQuote(opt));
+                }
+                pw.print(" -jar ");
+                pw.print(shQuote(jar.toAbsolutePath().toString()));
+                if (persistent) {
+                    pw.print(' ');
+                    pw.print(SHIM_ARGS);
+                }
+                pw.println(" \"$@\"");
             }
         }
         installation.addFile(binFile);
@@ -319,13 +364,20 @@ public class Installer
         return bin;
     }
 
-    private void installFor(List<Browser> browsers)
+    private String installFor(List<Browser> browsers)
     throws IOException
     {
         Files.createDirectories(dir);
         Path currentJar = getJar();
         Path newJar = Files.copy(currentJar, dir.resolve(JAR_NAME), StandardCopyOption.REPLACE_EXISTING);
         File installationFile = newJar.getParent().resolve(INSTALLATION_FILE_NAME).toFile();
+        Path archive = newJar.toAbsolutePath().resolveSibling(ARCHIVE_NAME);
+        StartupTuning tuning = new StartupTuning(JAVA, newJar.toAbsolutePath(), archive, persistent);
+        tuning.run();
+        javaOpts = tuning.getOpts();
+        if (tuning.getArchive() != null) {
+            installation.addFile(tuning.getArchive().toFile());
+        }
         Path bin = createBin(newJar);
         for (Browser b : browsers) {
             if (b == Browser.FIREFOX) installFirefox(bin);
@@ -333,5 +385,6 @@ public class Installer
             else if (b == Browser.CHROMIUM) installChromium(bin);
         }
         mapper.writeValue(installationFile, installation);
+        return tuning.getReport();
     }
 }
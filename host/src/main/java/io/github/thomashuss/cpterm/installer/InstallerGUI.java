@@ -53,6 +53,10 @@ public class InstallerGUI
         rootPanel.add(new JLabel("Select the install location:"));
         JTextField locationField = new JTextField(Installer.getDefaultDir().toString());
         rootPanel.add(locationField);
+        rootPanel.add(Box.createRigidArea(SPACER));
+
+        JCheckBox persistentCheck = new JCheckBox("Keep the host running between browser sessions");
+        rootPanel.add(persistentCheck);
 
         boolean ff, chrome, chromium;
         String location;
@@ -81,9 +85,10 @@ public class InstallerGUI
                     b.add(Browser.CHROMIUM);
                 }
                 try {
-                    Installer.install(Paths.get(locationField.getText()), b);
+                    String report = Installer.install(Paths.get(locationField.getText()), b,
+                            persistentCheck.isSelected());
                     JOptionPane.showMessageDialog(null,
-                            "Installation succeeded.  You may delete the installer.",
+                            "Installation succeeded.  You may delete the installer.\n\n" + report,
                             null, JOptionPane.INFORMATION_MESSAGE);
                 } catch (Exception e) {
                     JOptionPane.showMessageDialog(null,
@@ -0,0 +1,307 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.installer;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks JVM options which make the host start faster for the {@code java} the launcher will run.  The
+ * installed host is run once on a sample problem to record the classes it loads into a class data sharing
+ * archive, which later runs map instead of loading and verifying those classes again.
+ * <p>
+ * Java 13 and later record a dynamic archive at exit.  Java 11 and 12 dump a static archive from a list of
+ * the loaded classes.  Older versions, and any failure along the way, just get the options which don't need an
+ * archive.
+ */
+class StartupTuning
+{
+    /**
+     * Options for any version: a single-threaded collector suits a host with a small heap, and skipping the
+     * perf data file saves creating and mapping it.
+     */
+    private static final List<String> BASE_OPTS = Arrays.asList("-XX:+UseSerialGC", "-XX:-UsePerfData");
+    /**
+     * Options for a launcher which only forwards messages to a long-running host.  It exits when the browser
+     * disconnects, so it never runs long enough for the optimizing JIT to pay for itself.  The host itself
+     * lives as long as the browser does and keeps the full JIT.
+     */
+    private static final List<String> SHIM_OPTS = Collections.singletonList("-XX:TieredStopAtLevel=1");
+    /**
+     * Options for Java 9 and later.  JVM warnings go to standard output by default, where they would corrupt
+     * the messages to the browser, so they are sent to standard error.
+     */
+    private static final List<String> UNIFIED_LOGGING_OPTS = Arrays.asList("-Xlog:disable",
+            "-Xlog:all=warning:stderr");
+    private static final Pattern SPEC_VERSION = Pattern.compile("java\\.specification\\.version = (?:1\\.)?(\\d+)");
+    /**
+     * Starts the host as the browser would, since the browser's arguments aren't recognized as any other mode.
+     */
+    private static final String HOST_ARG = "startup-timing";
+    private static final int TIMED_RUNS = 3;
+    private static final long TIMEOUT = 2;
+    private static final File NULL_FILE = new File(
+            System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("windows") ? "NUL" : "/dev/null");
+    private final String java;
+    private final Path jar;
+    private final Path archive;
+    private final boolean shim;
+    private final List<String> opts = new ArrayList<>();
+    private boolean archived;
+    private String report;
+
+    /**
+     * @param java    command which runs the JVM the launcher will use
+     * @param jar     installed host
+     * @param archive where to put the archive
+     * @param shim    whether the launcher forwards to a long-running host instead of being the host
+     */
+    StartupTuning(String java, Path jar, Path archive, boolean shim)
+    {
+        this.java = java;
+        this.jar = jar;
+        this.archive = archive;
+        this.shim = shim;
+    }
+
+    /**
+     * Find the options to use, training an archive if the JVM supports it, and time the host's startup with
+     * and without them.  Never fails; if something goes wrong, the options fall back to ones which are known
+     * to work, or to none at all.
+     */
+    void run()
+    {
+        // the JVM writes archives read-only, which would keep them from being replaced or uninstalled on Windows
+        File archiveFile = archive.toFile();
+        if (archiveFile.exists() && !(archiveFile.setWritable(true) && archiveFile.delete())) {
+            report = "Could not replace " + archive + ", so the host will start with default options.";
+            return;
+        }
+        int version;
+        try {
+            version = detectVersion();
+        } catch (IOException e) {
+            report = "Could not detect the Java version, so the host will start with default options.  " + e;
+            return;
+        }
+        opts.addAll(BASE_OPTS);
+        if (shim) {
+            opts.addAll(SHIM_OPTS);
+        }
+        if (version >= 9) {
+            opts.addAll(UNIFIED_LOGGING_OPTS);
+        }
+        String why = null;
+        try {
+            if (version >= 13) {
+                archived = train(archive, "-XX:ArchiveClassesAtExit=" + archive);
+            } else if (version >= 11) {
+                archived = trainStatic();
+            } else {
+                why = "Java " + version + " does not support application class data sharing";
+            }
+            if (!archived && why == null) {
+                why = "The training run did not produce an archive";
+            }
+        } catch (IOException e) {
+            why = "The training run failed: " + e;
+        }
+        if (archived) {
+            archived = archiveFile.setWritable(true);
+        }
+        if (archived) {
+            opts.add("-Xshare:auto");
+            opts.add("-XX:SharedArchiveFile=" + archive);
+        }
+
+        try {
+            long before = timeStartup(Collections.emptyList());
+            long after = timeStartup(opts);
+            report = String.format("Host startup on Java %d: %d ms before, %d ms after tuning%s.", version,
+                    before, after, archived ? " with a class data sharing archive" : "");
+        } catch (IOException e) {
+            // the options themselves may be at fault, so play it safe
+            opts.clear();
+            archived = false;
+            report = "Could not start the host with tuned options, so it will start with default options.  " + e;
+            return;
+        }
+        if (why != null) {
+            report += "  " + why + '.';
+        }
+    }
+
+    /**
+     * @return options to pass to the JVM before {@code -jar}
+     */
+    List<String> getOpts()
+    {
+        return opts;
+    }
+
+    /**
+     * @return archive the options refer to, or {@code null} if none was made
+     */
+    Path getArchive()
+    {
+        return archived ? archive : null;
+    }
+
+    /**
+     * @return what was done and how much faster the host starts, for the user
+     */
+    String getReport()
+    {
+        return report;
+    }
+
+    private int detectVersion()
+    throws IOException
+    {
+        Process p = new ProcessBuilder(java, "-XshowSettings:properties", "-version")
+                .redirectErrorStream(true)
+                .start();
+        String out;
+        try (InputStream is = p.getInputStream()) {
+            out = IOUtils.toString(is, StandardCharsets.UTF_8);
+        }
+        Matcher m = SPEC_VERSION.matcher(out);
+        if (!m.find()) {
+            throw new IOException("Unrecognized output from " + java);
+        }
+        return Integer.parseInt(m.group(1));
+    }
+
+    /**
+     * Run the host on the sample problem.
+     *
+     * @param output    file the run should produce
+     * @param extraOpts options which make the JVM record what it loads
+     * @return {@code true} if the run succeeded and produced {@code output}
+     */
+    private boolean train(Path output, String... extraOpts)
+    throws IOException
+    {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(java);
+        cmd.addAll(opts);
+        cmd.addAll(Arrays.asList(extraOpts));
+        cmd.add("-jar");
+        cmd.add(jar.toString());
+        cmd.add("--train");
+        return waitFor(new ProcessBuilder(cmd)) && Files.isRegularFile(output);
+    }
+
+    /**
+     * Record the classes the host loads, then dump them to a static archive.
+     */
+    private boolean trainStatic()
+    throws IOException
+    {
+        Path classList = archive.resolveSibling(archive.getFileName() + ".classlist");
+        try {
+            if (train(classList, "-XX:DumpLoadedClassList=" + classList)) {
+                List<String> cmd = new ArrayList<>();
+                cmd.add(java);
+                cmd.addAll(opts);
+                cmd.addAll(Arrays.asList("-Xshare:dump", "-XX:SharedClassListFile=" + classList,
+                        "-XX:SharedArchiveFile=" + archive, "-cp", jar.toString()));
+                return waitFor(new ProcessBuilder(cmd)) && Files.isRegularFile(archive);
+            }
+            return false;
+        } finally {
+            Files.deleteIfExists(classList);
+        }
+    }
+
+    private static boolean waitFor(ProcessBuilder pb)
+    throws IOException
+    {
+        Process p = pb.redirectInput(NULL_FILE)
+                .redirectOutput(NULL_FILE)
+                .redirectError(NULL_FILE)
+                .start();
+        try {
+            if (!p.waitFor(TIMEOUT, TimeUnit.MINUTES)) {
+                p.destroyForcibly();
+                throw new IOException("Timed out");
+            }
+        } catch (InterruptedException e) {
+            p.destroyForcibly();
+            throw new IOException(e);
+        }
+        return p.exitValue() == 0;
+    }
+
+    /**
+     * Start the host as the browser would, several times, and take the quickest time from starting the JVM to
+     * receiving the host's first message.
+     *
+     * @param runOpts JVM options
+     * @return milliseconds
+     */
+    private long timeStartup(List<String> runOpts)
+    throws IOException
+    {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(java);
+        cmd.addAll(runOpts);
+        cmd.add("-jar");
+        cmd.add(jar.toString());
+        cmd.add(HOST_ARG);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            ProcessBuilder pb = new ProcessBuilder(cmd).redirectError(NULL_FILE);
+            long start = System.nanoTime();
+            Process p = pb.start();
+            try (DataInputStream in = new DataInputStream(p.getInputStream())) {
+                int length = Integer.reverseBytes(in.readInt());
+                if (length < 0) {
+                    throw new IOException("Bad message from host");
+                }
+                in.readFully(new byte[length]);
+                best = Math.min(best, System.nanoTime() - start);
+            } finally {
+                p.getOutputStream().close();
+                try {
+                    if (!p.waitFor(TIMEOUT, TimeUnit.MINUTES)) {
+                        p.destroyForcibly();
+                    }
+                } catch (InterruptedException e) {
+                    p.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(best);
+    }
+}
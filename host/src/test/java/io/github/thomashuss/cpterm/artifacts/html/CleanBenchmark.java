@@ -0,0 +1,140 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.apache.batik.util.SVGConstants;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.safety.Cleaner;
+import org.jsoup.safety.Safelist;
+import org.jsoup.select.Elements;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Measures the bytes allocated and the time taken to clean a statement by {@link ConversionUtils#clean(Document)},
+ * against a Jsoup {@link Cleaner} with the same rules, which copies the document and then has the children of
+ * SVG elements put back, which is how statements were cleaned before.  Statements are the HTML files given as
+ * arguments, such as statements saved from LeetCode and HackerRank, or built-in statements in their shape.
+ * Parsing isn't counted.  Not run by the build; after {@code mvn test-compile}, run it with
+ * {@code target/classes}, {@code target/test-classes} and the host's dependencies on the class path.  Needs a
+ * JVM which supports per-thread allocation counting, such as HotSpot.
+ */
+public final class CleanBenchmark
+{
+    private static final String BASE_URI = "https://example.com/problems/sample/";
+    private static final int WARM_UP = 200;
+    private static final int ITERATIONS = 400;
+    /**
+     * Documents parsed ahead of each timed batch, since cleaning changes them.
+     */
+    private static final int BATCH = 20;
+    private static final int SCALE = 20;
+    private static final com.sun.management.ThreadMXBean threads
+            = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final Cleaner cleaner = new Cleaner(new Safelist(Safelist.relaxed())
+            .addTags("svg")
+            .addAttributes(":all", "style")
+            .addAttributes("svg", "width", "height", "viewBox", "xmlns")
+            .addEnforcedAttribute("svg", "xmlns", SVGConstants.SVG_NAMESPACE_URI)
+            .addProtocols("img", "src", "data"));
+    /**
+     * Keeps results reachable, so the work isn't optimized away.
+     */
+    private static Object sink;
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        for (Map.Entry<String, String> e : Statements.load(args, SCALE).entrySet()) {
+            String html = e.getValue();
+            long[] c = measure(html, CleanBenchmark::cleanWithCleaner);
+            long[] p = measure(html, ConversionUtils::clean);
+            boolean same = textOutsideSvg(cleanWithCleaner(Jsoup.parse(html, BASE_URI)))
+                    .equals(textOutsideSvg(ConversionUtils.clean(Jsoup.parse(html, BASE_URI))));
+            System.out.printf("%-34s %7d B html: %8d -> %8d B/doc, %6d -> %6d us/doc, same text: %s%n",
+                    e.getKey(), html.getBytes(StandardCharsets.UTF_8).length, c[0], p[0], c[1] / 1000,
+                    p[1] / 1000, same);
+        }
+    }
+
+    /**
+     * Clean a document as it was before {@link ConversionUtils#clean(Document)} cleaned in place.
+     */
+    private static Document cleanWithCleaner(Document d)
+    {
+        Elements svgs = d.getElementsByTag("svg");
+        ArrayList<Elements> svgChildren = new ArrayList<>(svgs.size());
+        for (Element svg : svgs) {
+            Elements c = svg.children();
+            if (svg.hasAttr("width") && svg.hasAttr("height") && !c.isEmpty()) {
+                svgChildren.add(c);
+            } else {
+                svg.remove();
+            }
+        }
+        d = cleaner.clean(d);
+        int i = 0;
+        for (Element svg : d.getElementsByTag("svg")) {
+            svg.appendChildren(svgChildren.get(i++));
+        }
+        return d;
+    }
+
+    /**
+     * The old way kept the text of SVG elements both where the {@link Cleaner} unwrapped it and in the children
+     * it put back, so SVG elements are left out of the comparison.
+     */
+    private static String textOutsideSvg(Document d)
+    {
+        d.getElementsByTag("svg").remove();
+        return d.body().text();
+    }
+
+    /**
+     * @return bytes allocated and nanoseconds taken per document
+     */
+    private static long[] measure(String html, UnaryOperator<Document> clean)
+    {
+        Document[] docs = new Document[BATCH];
+        for (int i = 0; i < WARM_UP; i++) {
+            sink = clean.apply(Jsoup.parse(html, BASE_URI));
+        }
+        long id = Thread.currentThread().getId();
+        long bytes = 0;
+        long time = 0;
+        for (int done = 0; done < ITERATIONS; done += BATCH) {
+            for (int i = 0; i < BATCH; i++) {
+                docs[i] = Jsoup.parse(html, BASE_URI);
+            }
+            long before = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            for (Document d : docs) {
+                sink = clean.apply(d);
+            }
+            time += System.nanoTime() - start;
+            bytes += threads.getThreadAllocatedBytes(id) - before;
+        }
+        return new long[]{bytes / ITERATIONS, time / ITERATIONS};
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the lifecycle of an {@link OfficeWorker} in a {@link WorkerPool}, the way {@link LibreofficeConverter}
+ * runs it, against a fake office and a fake {@link OfficeWorker.Connector}: connecting is retried until the
+ * office listens, a job whose office crashed is run again on a new office, and an idle office is stopped.  The
+ * fake office is a shell script which runs until its connection is closed, so this needs {@code /bin/sh}.
+ * Not run by the build; after {@code mvn test-compile}, run it with {@code target/classes},
+ * {@code target/test-classes} and the host's dependencies on the class path.  Exits with status 1 if a check
+ * fails.
+ */
+public final class OfficeWorkerCheck
+{
+    /**
+     * Connection attempts the fake office refuses after each start, as if it were still starting.
+     */
+    private static final int REFUSED_CONNECTIONS = 3;
+    private static final long IDLE_TIMEOUT = 300;
+    private static final String OFFICE_SCRIPT = "#!/bin/sh\n"
+            + "for arg; do\n"
+            + "  case \"$arg\" in -env:UserInstallation=file://*) dir=${arg#-env:UserInstallation=file://} ;; esac\n"
+            + "done\n"
+            + "while [ ! -f \"$dir/quit\" ]; do sleep 0.05; done\n";
+    private static final AtomicInteger connects = new AtomicInteger();
+    private static final AtomicInteger starts = new AtomicInteger();
+    private static volatile boolean crashNext;
+    private static int failures;
+
+    public static void main(String[] args)
+    throws Exception
+    {
+        Path dir = Files.createTempDirectory("office-worker-check");
+        Path exe = dir.resolve("soffice");
+        Files.write(exe, OFFICE_SCRIPT.getBytes(StandardCharsets.US_ASCII));
+        check(exe.toFile().setExecutable(true), "fake office is executable");
+        Path input = dir.resolve("in.html");
+        Files.write(input, "<p>problem</p>".getBytes(StandardCharsets.UTF_8));
+        Path output = dir.resolve("out.pdf");
+
+        WorkerPool<PoolWorker> pool = new WorkerPool<>("office", slot -> {
+            Path profile = dir.resolve("profile").resolve(String.valueOf(slot));
+            Files.deleteIfExists(profile.resolve("quit"));
+            OfficeWorker office = new OfficeWorker(exe.toString(), profile, new FakeConnector(profile));
+            starts.incrementAndGet();
+            office.start();
+            return new PoolWorker(office);
+        });
+        pool.configure(1, 8, 50, 10000, IDLE_TIMEOUT);
+
+        pool.run(w -> w.office.convert(input, output, "writer_pdf_Export"));
+        check(Files.isRegularFile(output), "first job converted");
+        check(connects.get() == REFUSED_CONNECTIONS + 1, "connecting retried until the office listened, "
+                + connects.get() + " attempts");
+        check(starts.get() == 1, "one office started");
+
+        pool.run(w -> w.office.convert(input, output, "writer_pdf_Export"));
+        check(starts.get() == 1, "second job reused the office");
+
+        crashNext = true;
+        pool.run(w -> w.office.convert(input, output, "writer_pdf_Export"));
+        check(starts.get() == 2, "job retried on a new office after a crash, " + starts.get() + " starts");
+        check(pool.getStats().getFailed() == 1 && pool.getStats().getCompleted() == 3,
+                "crash counted as one failure: " + pool.getStats());
+
+        PoolWorker[] last = new PoolWorker[1];
+        pool.run(w -> last[0] = w);
+        check(!last[0].office.isLost(), "new office is running");
+        Thread.sleep(IDLE_TIMEOUT * 3);
+        check(last[0].office.isLost() && last[0].closed, "idle office stopped");
+        check(pool.getStats().getWorkers() == 0, "pool is empty after idling: " + pool.getStats());
+
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        System.out.println((ok ? "ok    " : "FAIL  ") + what);
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    /**
+     * Wraps an office as {@link LibreofficeConverter}'s worker does.
+     */
+    private static final class PoolWorker
+            implements WorkerPool.Worker
+    {
+        private final OfficeWorker office;
+        private volatile boolean closed;
+
+        private PoolWorker(OfficeWorker office)
+        {
+            this.office = office;
+        }
+
+        @Override
+        public boolean isLost()
+        {
+            return office.isLost();
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+            office.stop();
+        }
+    }
+
+    /**
+     * Refuses the first few connections after each start, then hands out a {@link FakeClient}.
+     */
+    private static final class FakeConnector
+            implements OfficeWorker.Connector
+    {
+        private final Path profile;
+        private int refused;
+
+        private FakeConnector(Path profile)
+        {
+            this.profile = profile;
+        }
+
+        @Override
+        public OfficeWorker.Client connect(int port)
+        throws IOException
+        {
+            connects.incrementAndGet();
+            if (refused++ < REFUSED_CONNECTIONS) {
+                throw new IOException("Connection refused");
+            }
+            return new FakeClient(profile);
+        }
+    }
+
+    /**
+     * Copies the input to the output, or loses its connection if {@link #crashNext} is set.  Closing it makes
+     * the fake office exit.
+     */
+    private static final class FakeClient
+            implements OfficeWorker.Client
+    {
+        private final Path profile;
+        private volatile boolean connected = true;
+
+        private FakeClient(Path profile)
+        {
+            this.profile = profile;
+        }
+
+        @Override
+        public void convert(Path input, Path output, String filter)
+        throws IOException
+        {
+            if (crashNext) {
+                crashNext = false;
+                connected = false;
+                throw new IOException("Connection to office was lost");
+            }
+            Files.copy(input, output, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return connected;
+        }
+
+        @Override
+        public void close()
+        {
+            connected = false;
+            try {
+                Files.write(profile.resolve("quit"), Arrays.asList("quit"), StandardCharsets.US_ASCII);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import com.openhtmltopdf.pdfboxout.PdfRendererBuilder;
+import com.openhtmltopdf.svgsupport.BatikSVGDrawer;
+import org.apache.commons.io.IOUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.helper.W3CDom;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Measures the time per document and the size of the PDF when Open HTML to PDF renders the training statement in
+ * an extra font, such as a CJK or math font: with no extra font, with the font registered from its file for each
+ * document, which reads and parses it every time, and with {@link PdfFonts}.  Not run by the build; after
+ * {@code mvn test-compile}, run it with {@code target/classes}, {@code target/test-classes} and the host's
+ * dependencies on the class path, and the path to a font file as the argument.  Each case warms up the JVM for
+ * the next, so for a fair first document, run one case per JVM by naming it, as {@code none}, {@code file} or
+ * {@code fonts}, after the font file.
+ */
+public final class PdfFontsBenchmark
+{
+    private static final int WARM_UP = 10;
+    private static final int ITERATIONS = 50;
+    private static final String FAMILY = "Benchmark Font";
+    private static final BatikSVGDrawer drawer = new BatikSVGDrawer();
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: PdfFontsBenchmark <font file> [none|file|fonts]");
+            System.exit(2);
+        }
+        File font = new File(args[0]);
+        Document statement;
+        try (InputStream is = PdfFontsBenchmark.class.getResourceAsStream("/training/problem.html")) {
+            statement = Jsoup.parse(IOUtils.toString(is, StandardCharsets.UTF_8), "https://example.com/");
+        }
+        // symbols the standard PDF fonts don't have
+        statement.body().appendElement("p").text("∑ a_i ≤ 10⁹, ∀ i ∈ [1, n], α·β ≠ γ, 整数 n");
+        statement.head().appendChild(new Element("style").html("body{font-family:'" + FAMILY + "';}"));
+
+        String only = args.length > 1 ? args[1] : null;
+        if (only == null || only.equals("none")) {
+            report("No extra font", statement, b -> {
+            });
+        }
+        if (only == null || only.equals("file")) {
+            report("Font file registered per document", statement, b -> b.useFont(font, FAMILY));
+        }
+        if (only == null || only.equals("fonts")) {
+            long start = System.nanoTime();
+            PdfFonts fonts = PdfFonts.read(FAMILY + '=' + font);
+            System.out.printf("PdfFonts.read: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+            report("PdfFonts", statement, fonts::applyTo);
+        }
+    }
+
+    private static void report(String name, Document statement, Consumer<PdfRendererBuilder> fonts)
+    throws IOException
+    {
+        long first = render(statement, fonts, null);
+        for (int i = 0; i < WARM_UP; i++) {
+            render(statement, fonts, null);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long total = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            out.reset();
+            total += render(statement, fonts, out);
+        }
+        System.out.printf("%s: first %.1f ms, then %.1f ms per document, %d bytes%n", name, first / 1e6,
+                total / 1e6 / ITERATIONS, out.size());
+    }
+
+    /**
+     * @return nanoseconds taken
+     */
+    private static long render(Document statement, Consumer<PdfRendererBuilder> fonts, ByteArrayOutputStream out)
+    throws IOException
+    {
+        long start = System.nanoTime();
+        PdfRendererBuilder builder = new PdfRendererBuilder()
+                .withW3cDocument(W3CDom.convert(statement), statement.location())
+                .toStream(out == null ? new ByteArrayOutputStream() : out)
+                .useSVGDrawer(drawer);
+        fonts.accept(builder);
+        builder.run();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Problem statements for the benchmarks: statement HTML saved from the browser, as the scrapers send it, or,
+ * if none is given, statements built in the shape of LeetCode's and HackerRank's markup.
+ */
+final class Statements
+{
+    private Statements()
+    {
+    }
+
+    /**
+     * @param files statement files, each holding the HTML of one statement
+     * @param scale number of times the built-in statements repeat their examples or formulas
+     * @return name -> HTML of each statement
+     */
+    static Map<String, String> load(String[] files, int scale)
+    throws IOException
+    {
+        Map<String, String> statements = new LinkedHashMap<>();
+        for (String f : files) {
+            Path p = Paths.get(f);
+            statements.put(p.getFileName().toString(), new String(Files.readAllBytes(p), StandardCharsets.UTF_8));
+        }
+        if (statements.isEmpty()) {
+            statements.put("LeetCode-style, 3 examples", leetCode(3));
+            statements.put("HackerRank-style, 20 formulas", hackerRank(20));
+            statements.put("LeetCode-style, " + 3 * scale + " examples", leetCode(3 * scale));
+            statements.put("HackerRank-style, " + 20 * scale + " formulas", hackerRank(20 * scale));
+        }
+        return statements;
+    }
+
+    /**
+     * A statement in the shape of LeetCode's description: plain paragraphs with inline code, example blocks,
+     * an image with inline styles, and constraints with superscripts.
+     *
+     * @param examples number of examples
+     * @return statement HTML
+     */
+    static String leetCode(int examples)
+    {
+        StringBuilder sb = new StringBuilder("<div class=\"elfjS\" data-track-load=\"description_content\">")
+                .append("<p>Given an integer array <code>nums</code> of length <code>n</code> and an integer ")
+                .append("<code>target</code>, return <em>the number of pairs</em> <code>(i, j)</code> where ")
+                .append("<code>0 &lt;= i &lt; j &lt; n</code> and <code>nums[i] + nums[j] &lt;= target</code>.")
+                .append("</p>\n<p>&nbsp;</p>\n");
+        for (int i = 1; i <= examples; i++) {
+            sb.append("<p><strong class=\"example\">Example ").append(i).append(":</strong></p>\n")
+                    .append("<div class=\"example-block\">\n<p><strong>Input:</strong> <span class=\"example-io\">")
+                    .append("nums = [-1,1,2,3,").append(i).append("], target = 2</span></p>\n")
+                    .append("<p><strong>Output:</strong> <span class=\"example-io\">3</span></p>\n")
+                    .append("<p><strong>Explanation:</strong></p>\n<p>There are 3 pairs of indices that ")
+                    .append("satisfy the conditions in the statement:</p>\n<ul>\n")
+                    .append("\t<li>(0, 1) since 0 &lt; 1 and nums[0] + nums[1] = 0 &lt; target</li>\n")
+                    .append("\t<li>(0, 2) since 0 &lt; 2 and nums[0] + nums[2] = 1 &lt; target</li>\n")
+                    .append("</ul>\n</div>\n");
+            if (i % 2 == 1) {
+                sb.append("<img alt=\"\" src=\"https://assets.leetcode.com/uploads/2024/01/0").append(i)
+                        .append("/example.png\" style=\"width: 400px; height: 240px;\">\n");
+            }
+            sb.append("<pre><strong>Input:</strong> n = ").append(i).append(", edges = [[0,1],[1,2]]\n")
+                    .append("<strong>Output:</strong> ").append(i * 2).append("\n</pre>\n");
+        }
+        return sb.append("<p>&nbsp;</p>\n<p><strong>Constraints:</strong></p>\n<ul>\n")
+                .append("\t<li><code>1 &lt;= nums.length == n &lt;= 5 * 10<sup>4</sup></code></li>\n")
+                .append("\t<li><code>-10<sup>9</sup> &lt;= nums[i], target &lt;= 10<sup>9</sup></code></li>\n")
+                .append("</ul>\n<p>&nbsp;</p>\n<strong>Follow-up:&nbsp;</strong>Can you come up with an ")
+                .append("algorithm that is less than <code>O(n<sup>2</sup>)</code><font face=\"monospace\">")
+                .append("&nbsp;</font>time complexity?</div>")
+                .toString();
+    }
+
+    /**
+     * A statement in the shape of HackerRank's: nested wrappers, math typeset by KaTeX as MathML alongside
+     * styled spans, a hidden SVG, and formats and samples in code blocks.  The math is dense in symbols which are
+     * rewritten to TeX.
+     *
+     * @param formulas number of formulas
+     * @return statement HTML
+     */
+    static String hackerRank(int formulas)
+    {
+        StringBuilder sb = new StringBuilder("<div class=\"challenge-body-html\"><div class=\"ps-content\">")
+                .append("<div class=\" ps-content-wrapper-v0\"><div class=\"msB challenge_problem_statement\">")
+                .append("<div class=\"msB challenge_problem_statement_body\"><div class=\"hackdown-content\">")
+                .append("<svg style=\"display: none;\"><defs id=\"MathJax_SVG_glyphs\"></defs></svg>\n")
+                .append("<p>You are given a sequence of integers. Answer the queries below.</p>\n");
+        for (int i = 0; i < formulas; i++) {
+            sb.append("<p>For every <span class=\"katex\"><span class=\"katex-mathml\">")
+                    .append("<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><semantics><mrow>")
+                    .append("<mn>1</mn><mo>≤</mo><msub><mi>a</mi><mi>i</mi></msub><mo>≤</mo>")
+                    .append("<mn>2</mn><mo>⋅</mo><msup><mn>10</mn><mn>5</mn></msup></mrow>")
+                    .append("<annotation encoding=\"application/x-tex\">1 \\le a_i \\le 2 \\cdot 10^5</annotation>")
+                    .append("</semantics></math></span><span class=\"katex-html\" aria-hidden=\"true\">")
+                    .append("<span class=\"base\"><span class=\"strut\" style=\"height:0.7804em;")
+                    .append("vertical-align:-0.136em;\"></span><span class=\"mord\">1</span>")
+                    .append("<span class=\"mspace\" style=\"margin-right:0.2778em;\"></span>")
+                    .append("<span class=\"mrel\">≤</span><span class=\"mspace\" style=\"margin-right:0.2778em;\">")
+                    .append("</span></span><span class=\"base\"><span class=\"mord\"><span class=\"mord mathnormal\">")
+                    .append("a</span><span class=\"msupsub\"><span class=\"vlist-t\"><span class=\"vlist\" ")
+                    .append("style=\"height:0.3117em;\"><span class=\"sizing reset-size6 size3 mtight\">")
+                    .append("<span class=\"mord mathnormal mtight\">i</span></span></span></span></span>")
+                    .append("</span></span></span></span>, the sum ∑ aᵢ over ")
+                    .append("all i ∈ [1, n] is at most 10⁹, and α·β ≠ γ for query ").append(i)
+                    .append(" × 2 ≥ k ≥ 0.</p>\n");
+            if (i % 5 == 0) {
+                sb.append("<img src=\"https://s3.amazonaws.com/hr-assets/0/").append(i)
+                        .append("/formula.svg\" class=\"lazy\" data-src=\"formula.svg\" style=\"vertical-align:")
+                        .append(" middle\">\n");
+            }
+        }
+        return sb.append("<p><strong>Input Format</strong></p>\n<p>The first line contains <em>n</em>.</p>\n")
+                .append("<p><strong>Sample Input</strong></p>\n<pre><code>5\n1 2 3 4 5\n</code></pre>\n")
+                .append("<p><strong>Sample Output</strong></p>\n<pre><code>15\n</code></pre>\n")
+                .append("<script>window.katexLoaded = true;</script><!-- statement end -->")
+                .append("</div></div></div></div></div></div>")
+                .toString();
+    }
+}
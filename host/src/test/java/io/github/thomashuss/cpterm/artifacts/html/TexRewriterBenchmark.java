@@ -0,0 +1,110 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.artifacts.html;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Measures the bytes allocated and the time taken by {@link TexRewriter#DEFAULT} to rewrite the symbols in a
+ * cleaned statement, as Pandoc's input is prepared, next to serializing the same document, which every
+ * conversion does too.  Statements are the HTML files given as arguments, or built-in statements; the
+ * HackerRank-style ones are dense in symbols.  Not run by the build; after {@code mvn test-compile}, run it with
+ * {@code target/classes}, {@code target/test-classes} and the host's dependencies on the class path.  Needs a
+ * JVM which supports per-thread allocation counting, such as HotSpot.
+ */
+public final class TexRewriterBenchmark
+{
+    private static final String BASE_URI = "https://example.com/problems/sample/";
+    private static final int WARM_UP = 200;
+    private static final int ITERATIONS = 400;
+    /**
+     * Documents copied ahead of each timed batch, since rewriting changes them.
+     */
+    private static final int BATCH = 20;
+    private static final int SCALE = 20;
+    private static final com.sun.management.ThreadMXBean threads
+            = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    /**
+     * Keeps results reachable, so the work isn't optimized away.
+     */
+    private static Object sink;
+
+    private interface Op
+    {
+        void run(Document d);
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        for (Map.Entry<String, String> e : Statements.load(args, SCALE).entrySet()) {
+            Document cleaned = ConversionUtils.clean(Jsoup.parse(e.getValue(), BASE_URI));
+            Document rewritten = cleaned.clone();
+            TexRewriter.DEFAULT.rewrite(rewritten.body());
+            long[] r = measure(cleaned, d -> TexRewriter.DEFAULT.rewrite(d.body()));
+            long[] s = measure(cleaned, d -> sink = d.html());
+            System.out.printf("%-34s %7d B text, %5d math spans: rewrite %8d B/doc %6d us/doc, "
+                            + "serialize %8d B/doc %6d us/doc%n",
+                    e.getKey(), cleaned.body().text().getBytes(StandardCharsets.UTF_8).length,
+                    mathSpans(rewritten.body().text()), r[0], r[1] / 1000, s[0], s[1] / 1000);
+        }
+    }
+
+    private static int mathSpans(String text)
+    {
+        int dollars = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '$') {
+                dollars++;
+            }
+        }
+        return dollars / 2;
+    }
+
+    /**
+     * @return bytes allocated and nanoseconds taken per document
+     */
+    private static long[] measure(Document cleaned, Op op)
+    {
+        Document[] docs = new Document[BATCH];
+        for (int i = 0; i < WARM_UP; i++) {
+            op.run(cleaned.clone());
+        }
+        long id = Thread.currentThread().getId();
+        long bytes = 0;
+        long time = 0;
+        for (int done = 0; done < ITERATIONS; done += BATCH) {
+            for (int i = 0; i < BATCH; i++) {
+                docs[i] = cleaned.clone();
+            }
+            long before = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            for (Document d : docs) {
+                op.run(d);
+            }
+            time += System.nanoTime() - start;
+            bytes += threads.getThreadAllocatedBytes(id) - before;
+        }
+        return new long[]{bytes / ITERATIONS, time / ITERATIONS};
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright (C) 2024 Thomas Huss
+ *
+ *  CPTerm is free software: you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation, either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  CPTerm is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package io.github.thomashuss.cpterm.host.message;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the bytes allocated and the time taken per message by {@link MessageCodec}, against a plain
+ * {@link ObjectMapper} writing byte arrays and decoding through {@link Message}, which is how messages were
+ * handled before the codec.  Not run by the
+ * build; after {@code mvn test-compile}, run it with {@code target/classes}, {@code target/test-classes} and
+ * the host's dependencies on the class path.  Needs a JVM which supports per-thread allocation counting, such
+ * as HotSpot.
+ */
+public final class MessageCodecBenchmark
+{
+    private static final int WARM_UP = 50000;
+    private static final int ITERATIONS = 200000;
+    private static final com.sun.management.ThreadMXBean threads
+            = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    /**
+     * Keeps results reachable, so the work isn't optimized away.
+     */
+    private static Object sink;
+
+    private interface Op
+    {
+        void run()
+        throws IOException;
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        MessageCodec codec = new MessageCodec();
+        ObjectMapper mapper = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+
+        long start = System.nanoTime();
+        codec.encode(new Version("0"), out);
+        System.out.printf("First Version encode (cold): %d ms%n", (System.nanoTime() - start) / 1000000);
+
+        StringBuilder code = new StringBuilder();
+        while (code.length() < 4400) {
+            code.append("    for (int i = 0; i < n; i++) {\n        sum += a[i];\n    }\n");
+        }
+        SetCode setCode = new SetCode(code.toString());
+        // as Chrome sends it, with keys sorted by name
+        byte[] sorted = ("{\"cases\":{\"1\":{\"expected\":\"3\",\"input\":\"1 2\",\"output\":\"3\"},"
+                + "\"2\":{\"error\":\"Wrong Answer\",\"expected\":\"7\",\"input\":\"3 4\",\"output\":\"8\"}},"
+                + "\"type\":\"testResults\"}").getBytes(StandardCharsets.UTF_8);
+        // as Firefox sends it, with the type first
+        byte[] typeFirst = ("{\"type\":\"testResults\",\"cases\":{\"1\":{\"expected\":\"3\",\"input\":\"1 2\","
+                + "\"output\":\"3\"},\"2\":{\"error\":\"Wrong Answer\",\"expected\":\"7\",\"input\":\"3 4\","
+                + "\"output\":\"8\"}}}").getBytes(StandardCharsets.UTF_8);
+
+        report("SetCode encode, 4.4 KB", () -> sink = mapper.writeValueAsBytes(setCode), () -> {
+            out.reset();
+            codec.encode(setCode, out);
+        });
+        report("TestResults decode, type last", () -> sink = mapper.readValue(sorted, Message.class),
+                () -> sink = codec.decode(sorted, 0, sorted.length));
+        report("TestResults decode, type first", () -> sink = mapper.readValue(typeFirst, Message.class),
+                () -> sink = codec.decode(typeFirst, 0, typeFirst.length));
+    }
+
+    private static void report(String name, Op mapper, Op codec)
+    throws IOException
+    {
+        long[] m = measure(mapper);
+        long[] c = measure(codec);
+        System.out.printf("%-32s %6d -> %6d B/msg, %6d -> %6d ns/msg%n", name, m[0], c[0], m[1], c[1]);
+    }
+
+    /**
+     * @return bytes allocated and nanoseconds taken per run
+     */
+    private static long[] measure(Op op)
+    throws IOException
+    {
+        for (int i = 0; i < WARM_UP; i++) {
+            op.run();
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        long time = System.nanoTime() - start;
+        return new long[]{(threads.getThreadAllocatedBytes(id) - before) / ITERATIONS, time / ITERATIONS};
+    }
+}